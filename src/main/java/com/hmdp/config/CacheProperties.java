@@ -0,0 +1,54 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按key前缀配置的缓存策略，未配置的前缀使用默认策略
+ * yaml中前缀包含冒号，需要写成 "[cache:shop:]" 的形式
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    private Policy defaultPolicy = new Policy();
+
+    private Map<String, Policy> policies = new LinkedHashMap<>();
+
+    /**
+     * 查找key对应的策略，多个前缀匹配时取最长的
+     * @param key
+     * @return
+     */
+    public Policy policyFor(String key) {
+        Policy matched = defaultPolicy;
+        int matchedLength = -1;
+        for (Map.Entry<String, Policy> entry : policies.entrySet()) {
+            String prefix = entry.getKey();
+            if (key.startsWith(prefix) && prefix.length() > matchedLength) {
+                matched = entry.getValue();
+                matchedLength = prefix.length();
+            }
+        }
+        return matched;
+    }
+
+    @Data
+    public static class Policy {
+        // 过期时间随机增加的比例，0.1表示在原过期时间上随机增加0~10%，避免同时写入的key同时过期
+        private double jitterRatio = 0.1;
+        // 数据库查询超时或熔断时，是否返回本节点保存的最后一次的值
+        private boolean staleOnError = false;
+        // 数据库查询超时时间，0表示不限制
+        private long dbTimeoutMillis = 0;
+        // 连续失败多少次后熔断
+        private int breakerFailureThreshold = 5;
+        // 熔断持续时间，之后放一个请求试探
+        private long breakerOpenSeconds = 30;
+    }
+}
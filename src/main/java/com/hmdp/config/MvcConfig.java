@@ -18,7 +18,7 @@ public class MvcConfig implements WebMvcConfigurer {
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
-                .excludePathPatterns("/user/code", "/user/login","/blog/hot", "/shop/**", "/shop-type/**", "/voucher/**")
+                .excludePathPatterns("/user/code", "/user/login","/blog/hot", "/shop/**", "/shop-type/**", "/voucher/**", "/actuator/health")
                         .order(1);
 
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
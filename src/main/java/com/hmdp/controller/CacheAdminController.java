@@ -0,0 +1,73 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.ShopCacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存运维接口
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
+    /**
+     * 查询逻辑过期缓存的重建统计
+     * @return 提交、成功、失败、被拒绝、提前刷新次数和队列长度
+     */
+    @GetMapping("/rebuild/stats")
+    public Result queryRebuildStats() {
+        return Result.ok(cacheClient.rebuildStats());
+    }
+
+    /**
+     * 查询滑动窗口内访问最多的key
+     * @param limit 返回数量
+     * @return key、估算访问次数、是否已提升为热点
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys(@RequestParam(value = "limit", defaultValue = "20") Integer limit) {
+        return Result.ok(hotKeyDetector.topKeys(limit));
+    }
+
+    /**
+     * 开始店铺缓存预热，异步执行
+     * @return 已有预热在执行时返回失败
+     */
+    @PostMapping("/warmup/shop")
+    public Result warmUpShop() {
+        if (!shopCacheWarmer.start()) {
+            return Result.fail("店铺缓存预热正在执行");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询店铺缓存预热进度
+     * @return 是否执行中、总数、已写入数量、耗时
+     */
+    @GetMapping("/warmup/shop")
+    public Result queryWarmUpProgress() {
+        return Result.ok(shopCacheWarmer.progress());
+    }
+}
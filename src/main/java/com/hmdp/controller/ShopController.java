@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -23,6 +24,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -42,6 +46,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器，并广播给其他节点
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -58,6 +64,15 @@ public class ShopController {
         return shopService.updateShop(shop);
     }
 
+    /**
+     * 查询店铺布隆过滤器状态
+     * @return 位数、哈希次数、内存占用和估算误判率
+     */
+    @GetMapping("/bloom/stats")
+    public Result queryBloomStats() {
+        return Result.ok(shopBloomFilter.stats());
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
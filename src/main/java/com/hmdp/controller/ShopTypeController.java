@@ -26,6 +26,6 @@ public class ShopTypeController {
     public Result queryTypeList() {
 //        List<ShopType> typeList = typeService
 //                .query().orderByAsc("sort").list();
-        return typeService.queryForAll();
+        return Result.ok(typeService.queryForAll());
     }
 }
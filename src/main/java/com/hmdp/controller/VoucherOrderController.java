@@ -5,6 +5,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,4 +27,14 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckIllVoucher(voucherId);
     }
+
+    /**
+     * 查询当前用户是否已经抢到该秒杀券，秒杀返回结果确认中时用于轮询
+     * @param voucherId
+     * @return true表示已经下单
+     */
+    @GetMapping("seckill/{id}/status")
+    public Result querySeckillStatus(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.querySeckillStatus(voucherId);
+    }
 }
@@ -2,6 +2,12 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 
 /**
  * <p>
@@ -10,4 +16,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface FollowMapper extends BaseMapper<Follow> {
 
+    /**
+     * 流式读取某个用户的所有粉丝id，粉丝很多时不会一次读进内存
+     */
+    @Select("SELECT user_id FROM tb_follow WHERE follow_user_id = #{followUserId}")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(Long.class)
+    void scanFollowerIds(@Param("followUserId") Long followUserId, ResultHandler<Long> handler);
 }
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.ResultType;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 
 /**
  * <p>
@@ -10,4 +15,19 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取所有店铺id，fetchSize为Integer.MIN_VALUE时mysql驱动逐行返回，不会把整张表读进内存
+     */
+    @Select("SELECT id FROM tb_shop")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(Long.class)
+    void scanIds(ResultHandler<Long> handler);
+
+    /**
+     * 流式读取所有店铺，用于缓存预热
+     */
+    @Select("SELECT * FROM tb_shop")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(Shop.class)
+    void scanAll(ResultHandler<Shop> handler);
 }
@@ -18,4 +18,10 @@ public interface IBlogService extends IService<Blog> {
     void likeBlog(Long id);
 
     Result queryBlogLikes(Long id);
+
+    Result saveBlog(Blog blog);
+
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    Result queryBlogOfUser(Long userId, Integer current);
 }
@@ -1,9 +1,10 @@
 package com.hmdp.service;
 
-import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -11,5 +12,5 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
-    Result queryForAll();
+    List<ShopType> queryForAll();
 }
@@ -10,4 +10,5 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IUserInfoService extends IService<UserInfo> {
 
+    UserInfo queryInfo(Long userId);
 }
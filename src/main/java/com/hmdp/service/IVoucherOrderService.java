@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,5 +15,9 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckIllVoucher(Long voucherId);
 
+    Result querySeckillStatus(Long voucherId);
+
     void createVoucherOrder(VoucherOrder order);
+
+    List<Boolean> createVoucherOrderGroup(Long voucherId, List<VoucherOrder> orders);
 }
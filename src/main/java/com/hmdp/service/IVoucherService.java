@@ -1,9 +1,10 @@
 package com.hmdp.service;
 
-import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -11,7 +12,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherService extends IService<Voucher> {
 
-    Result queryVoucherOfShop(Long shopId);
+    List<Voucher> queryVoucherOfShop(Long shopId);
+
+    void addVoucher(Voucher voucher);
 
     void addSeckillVoucher(Voucher voucher);
 }
@@ -4,6 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
@@ -11,19 +12,34 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.FeedPublisher;
+import com.hmdp.utils.FeedTimeline;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -40,25 +56,47 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private FeedPublisher feedPublisher;
+
+    @Resource
+    private FeedTimeline feedTimeline;
+
+    @Resource
+    private BlogHotRanking blogHotRanking;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("blog_like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
     /**
-     * 查询热门博客
+     * 查询热门博客，按热度排行分页，不再对tb_blog排序
      *
      * @param current
      * @return
      */
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        for (Blog blog : records) {
-            queryBlogUser(blog);
-            queryBlogLike(blog);
+        // 从热门排行读取当前页的博客id
+        List<Long> ids = blogHotRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
         }
+        // 按排行中的顺序查询博客
+        List<Blog> records = listByIdsInOrder(ids);
+        // 查询用户，一页的作者一次批量查询
+        queryBlogUsers(records);
+        queryBlogsLike(records);
         return Result.ok(records);
     }
 
@@ -78,9 +116,33 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //2. 查询blog相关的用户
         queryBlogUser(blog);//根据blog中的信息查询作者信息并填装
         queryBlogLike(blog);
+        //3. 点赞过的博客点赞数以redis为准，数据库中的值可能还没有回写
+        Integer liked = queryLikedCount(id);
+        if (liked != null) {
+            blog.setLiked(liked);
+        }
         return Result.ok(blog);
     }
 
+    /**
+     * 查询redis中的点赞数，基数 + 点赞zset的元素个数
+     *
+     * @param id
+     * @return 还没有通过redis点赞过的博客没有基数，返回null，以数据库为准
+     */
+    private Integer queryLikedCount(Long id) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.hGet(BLOG_LIKED_BASE_KEY, id.toString());
+            stringConnection.zCard(BLOG_LIKED_KEY + id);
+            return null;
+        });
+        if (results.get(0) == null) {
+            return null;
+        }
+        return Integer.parseInt((String) results.get(0)) + ((Long) results.get(1)).intValue();
+    }
+
     /**
      * 当前blog是否被当前用户点过赞
      *
@@ -92,42 +154,71 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         Long userId = UserHolder.getUser().getId();
         String key = BLOG_LIKED_KEY + blog.getId();
+        hotKeyDetector.record(key);
         //判断该用户是否点赞
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
 
+    /**
+     * 批量查询一组blog是否被当前用户点过赞，一次pipeline完成所有ZSCORE
+     *
+     * @param blogs
+     */
+    private void queryBlogsLike(List<Blog> blogs) {
+        if (UserHolder.getUser() == null || blogs.isEmpty()) {
+            return;
+        }
+        String userId = UserHolder.getUser().getId().toString();
+        for (Blog blog : blogs) {
+            hotKeyDetector.record(BLOG_LIKED_KEY + blog.getId());
+        }
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                stringConnection.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     /*
-     * 博客点赞
+     * 博客点赞，再次点赞为取消点赞
+     * 点赞状态和点赞数以redis为准，一次lua脚本完成切换并标记博客，点赞数由BlogLikeFlusher批量回写数据库
      * @param id
      */
     @Override
     public void likeBlog(Long id) {
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         //判断当前用户是否登录，如果未登录就不查询点赞数据
         if (UserHolder.getUser() == null) {
             return;
         }
         //获取登录用户
         Long userId = UserHolder.getUser().getId();
-        //判断该用户是否点赞
-        Double member = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        //未点赞，可以点赞
-        if (member == null) {
-            //数据库点赞数+1
-            boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
-            if (success) {
-                //redis保存点赞信息到zset,将时间戳作为分数，后续进行点赞排行榜
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
-            }
-        } else {//已点赞，取消点赞
-            //数据库点赞数-1
-            boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
-            if (success) {
-                //redis取消点赞信息
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+        //第一次通过redis点赞的博客，带上数据库中的点赞数，脚本据此记录基数，避免回写时覆盖原有的点赞数
+        int dbLiked = -1;
+        if (!stringRedisTemplate.opsForHash().hasKey(BLOG_LIKED_BASE_KEY, id.toString())) {
+            Blog blog = query().select("liked").eq("id", id).one();
+            if (blog == null) {
+                return;
             }
+            dbLiked = blog.getLiked() == null ? 0 : blog.getLiked();
         }
+        //将时间戳作为分数，后续进行点赞排行榜；同一个脚本中按新的点赞数更新热门排行
+        stringRedisTemplate.execute(
+                LIKE_SCRIPT,
+                Arrays.asList(key, BLOG_LIKED_DIRTY_KEY, BLOG_LIKED_BASE_KEY,
+                        BLOG_HOT_KEY, BLOG_HOT_CREATED_KEY, BLOG_HOT_BASE_KEY),
+                userId.toString(),
+                String.valueOf(System.currentTimeMillis()),
+                id.toString(),
+                String.valueOf(dbLiked),
+                String.valueOf(blogHotRanking.getDecaySeconds()));
     }
 
     /**
@@ -140,6 +231,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikes(Long id) {
         //查询点赞top5 zrange key 0 4
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         //获取点赞用户id,也就是key，不需要获取value也就是时间戳
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         //解析出用户id
@@ -161,6 +253,125 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(users);
     }
 
+    /**
+     * 保存博客，加入热门排行，并异步推送到粉丝的收件箱
+     *
+     * @param blog
+     * @return 博客id
+     */
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 保存探店博文
+        boolean success = save(blog);
+        if (!success) {
+            return Result.fail("新增笔记失败！");
+        }
+        // 加入热门排行
+        blogHotRanking.add(blog);
+        // 推送到粉丝收件箱
+        feedPublisher.publish(blog);
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    /**
+     * 滚动分页查询关注的人发布的博客，合并收件箱和关注的大V的发件箱
+     *
+     * @param max    上一页的最小时间戳
+     * @param offset 上一页中与最小时间戳相同的条数，跳过这些已经返回过的博客
+     * @return
+     */
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        Long userId = UserHolder.getUser().getId();
+        List<ZSetOperations.TypedTuple<String>> typedTuples =
+                feedTimeline.read(userId, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (typedTuples == null || typedTuples.isEmpty()) {
+            return Result.ok();
+        }
+        //解析博客id、本页最小时间戳和与最小时间戳相同的条数
+        List<Long> ids = new ArrayList<>(typedTuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : typedTuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        //本页最小时间戳与上一页相同，要把上一页跳过的条数也算上
+        os = minTime == max ? os + offset : os;
+        //按时间线中的顺序查询博客
+        List<Blog> blogs = listByIdsInOrder(ids);
+        queryBlogUsers(blogs);
+        queryBlogsLike(blogs);
+        ScrollResult scrollResult = new ScrollResult();
+        scrollResult.setList(blogs);
+        scrollResult.setMinTime(minTime);
+        scrollResult.setOffset(os);
+        return Result.ok(scrollResult);
+    }
+
+    /**
+     * 分页查询某个用户发布的博客
+     *
+     * @param userId
+     * @param current
+     * @return
+     */
+    @Override
+    public Result queryBlogOfUser(Long userId, Integer current) {
+        // 根据用户查询
+        Page<Blog> page = query()
+                .eq("user_id", userId).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        queryBlogsLike(records);
+        return Result.ok(records);
+    }
+
+    /**
+     * 按给定id的顺序查询博客，已删除的博客不返回
+     *
+     * @param ids
+     * @return
+     */
+    private List<Blog> listByIdsInOrder(List<Long> ids) {
+        String idStr = StrUtil.join(",", ids);
+        return query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+    }
+
+    /**
+     * 批量查询一组blog的作者信息并填装，缓存命中一次MGET，未命中一次IN查询
+     *
+     * @param blogs
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                this::listUserDTOs, UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    private List<UserDTO> listUserDTOs(Collection<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .collect(Collectors.toList());
+    }
+
     /**
      * 根据blog中的信息查询作者信息并填装
      *
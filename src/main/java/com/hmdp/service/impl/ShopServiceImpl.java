@@ -11,6 +11,7 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -37,9 +38,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private CacheClient cacheClient;
 
+    @Autowired
+    private ShopBloomFilter shopBloomFilter;
+
 
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器判断不存在的id，直接返回，不查缓存和数据库
+        if (!shopBloomFilter.mightContain(id)) {
+            return Result.fail("店铺不存在");
+        }
         //缓存穿透
 //        Shop shop = queryWithPassThrough(id);
         //互斥锁解决缓存击穿同时解决缓存穿透
@@ -47,9 +55,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //逻辑过期解决缓存击穿
 //        Shop shop = queryWithMutex(id);
         //使用工具类解决缓存穿透问题
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, Long.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //使用工具类解决缓存击穿问题，逻辑过期
-//        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, 10L, id, Shop.class, this::getById);
+//        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, Long.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //使用工具类解决缓存击穿问题，逻辑过期，缓存由ShopCacheWarmer预热
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL), id, Shop.class, this::getById);
         if (shop == null) {
             return Result.fail("店铺不存在");
         }
@@ -67,8 +75,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //删除缓存，同时清除各节点的本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
         return Result.ok();
     }
 
@@ -4,8 +4,11 @@ import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CachedQuery;
 import org.springframework.stereotype.Service;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -14,4 +17,14 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    @Override
+    @CachedQuery(prefix = CACHE_USER_INFO_KEY, key = "#userId")
+    public UserInfo queryInfo(Long userId) {
+        UserInfo info = getById(userId);
+        if (info != null) {
+            info.setCreateTime(null);
+            info.setUpdateTime(null);
+        }
+        return info;
+    }
 }
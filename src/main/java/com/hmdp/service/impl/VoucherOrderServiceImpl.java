@@ -8,31 +8,49 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.ILock;
+import com.hmdp.utils.OrderStreamMonitor;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -43,6 +61,9 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    //代理对象，异步写库时通过它调用事务方法；@Lazy注入，消费者线程启动时就可以使用，不依赖第一次秒杀请求
+    @Lazy
+    @Autowired
     private IVoucherOrderService object;
 
     @Autowired
@@ -57,6 +78,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RedissonClient redissonClient;
 
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private SeckillStockLease seckillStockLease;
+
+    @Autowired
+    private SeckillBatcher seckillBatcher;
+
+    @Autowired
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    //批处理等待超时、结果未知时的提示，data中带订单id
+    private static final String SECKILL_PENDING = "下单结果确认中，请稍后查询";
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
     static {
@@ -66,78 +108,103 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    private static final ExecutorService SECKILL_ORDER_EXCUTOR = Executors.newSingleThreadExecutor();
+
+    //消费者数量，每个消费者一个线程，组内名字为 c1..cN
+    @Value("${hmdp.seckill.order.consumer-count:4}")
+    private int consumerCount;
+
+    //每个消费者一次从stream中读取的最大消息数
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    //组提交窗口，窗口内同一优惠券的订单合并为一次扣减库存和一次批量插入
+    @Value("${hmdp.seckill.order.group-commit-window-ms:5}")
+    private long groupCommitWindowMs;
+
+    //一个窗口最多收集的订单数
+    @Value("${hmdp.seckill.order.group-commit-max-size:500}")
+    private int groupCommitMaxSize;
+
+    private final BlockingQueue<PendingOrder> groupCommitQueue = new LinkedBlockingQueue<>();
+
+    private ExecutorService seckillOrderExecutor;
+
+    private ExecutorService groupCommitExecutor;
+
+    //pending-list恢复间隔
+    @Value("${hmdp.seckill.order.recovery-interval-seconds:5}")
+    private long recoveryIntervalSeconds;
+
+    //消息空闲多久才会被恢复线程认领，避免抢走消费者正在处理的消息
+    @Value("${hmdp.seckill.order.recovery-min-idle-seconds:30}")
+    private long recoveryMinIdleSeconds;
+
+    //最大投递次数，超过后转入死信队列
+    @Value("${hmdp.seckill.order.max-retries:5}")
+    private long maxRetries;
+
+    private static final String RECOVERY_CONSUMER = "recovery";
+
+    private final ScheduledExecutorService recoveryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile boolean running = true;
 
     @PostConstruct
-    private void init() {//整个类一初始化完成就执行这个方法，启动阻塞队列的线程
-        SECKILL_ORDER_EXCUTOR.submit(new VoucherOrderHandler());
+    private void init() {//整个类一初始化完成就执行这个方法，启动消费者线程
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount + 1);
+        groupCommitExecutor = Executors.newFixedThreadPool(consumerCount);
+        seckillOrderExecutor.submit(new GroupCommitter());
+        for (int i = 1; i <= consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler("c" + i));
+        }
+        recoveryExecutor.scheduleWithFixedDelay(this::recoverPendingList, recoveryIntervalSeconds, recoveryIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        groupCommitExecutor.shutdown();
+        recoveryExecutor.shutdown();
     }
 
     /**
-     * 线程方法，循环从消息队列中获取消息，异步处理订单
+     * 线程方法，循环从消息队列中批量获取消息，异步处理订单
      */
     //重写线程方法
     private class VoucherOrderHandler implements Runnable {
+
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    //1.获取消息队列中的信息XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
-                    List<MapRecord<String, Object, Object>> voucher = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),//写组名和消费者名字
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),//每次获取一个，最多等待两秒
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())//指定读取的队列名称和位置
+                    //1.获取消息队列中的信息XREADGROUP GROUP g1 cN COUNT batchSize BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_STREAM_GROUP, consumerName),//写组名和消费者名字
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),//每次最多获取batchSize条，最多等待两秒
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.lastConsumed())//指定读取的队列名称和位置
                     );
                     //2.判断消息获取是否成功
-                    if (voucher == null || voucher.isEmpty()) {
+                    if (records == null || records.isEmpty()) {
                         //2.1如果获取失败，说明没有消息，继续下一次循环
                         continue;
                     }
-                    //2.2获取成功，可以下单
-                    //2.3解析订单中的信息
-                    MapRecord<String, Object, Object> record = voucher.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //3.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //4.回到消息队列去确认，ACK确认，队列名字，组名，消息id
-                    stringRedisTemplate.opsForStream().acknowledge("stream.orders", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePandingList();
-                }
-            }
-        }
-
-        private void handlePandingList() {
-            while (true) {
-                try {
-                    //1.获取panding-list中的信息XREADGROUP GROUP g1 c1 COUNT 1 STREAMS streams.order 0  不在需要阻塞，最后的读取写为0
-                    List<MapRecord<String, Object, Object>> voucher = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),//写组名和消费者名字
-                            StreamReadOptions.empty().count(1),//每次获取一个
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))//指定读取的队列名称和位置
-                    );
-                    //2.判断消息获取是否成功
-                    if (voucher == null || voucher.isEmpty()) {
-                        //2.1如果获取失败，说明没有异常消息，直接退出循环
-                        break;
-                    }
-                    //2.2获取成功，可以下单
-                    //2.3解析订单中的信息
-                    MapRecord<String, Object, Object> record = voucher.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //3.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //4.回到消息队列去确认，ACK确认，队列名字，组名，消息id
-                    stringRedisTemplate.opsForStream().acknowledge("stream.orders", "g1", record.getId());
+                    //3.批量创建订单并确认
+                    handleVoucherOrders(records);
                 } catch (Exception e) {
+                    //处理失败的消息留在pending-list中，由恢复线程重试，这里继续消费新消息
                     log.error("处理订单异常", e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
@@ -158,33 +225,236 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
 
         /**
-         * 尝试获取锁，获取成功则进入写入订单逻辑
+         * pending-list恢复，在独立线程中定期执行，不影响消费者消费新消息
+         * 空闲超过recovery-min-idle-seconds的消息用XCLAIM认领后重试，投递次数超过max-retries的消息转入死信队列
+         */
+        private void recoverPendingList() {
+            try {
+                //1.查询pending-list XPENDING stream.orders g1 - + batchSize
+                PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(
+                        SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, Range.unbounded(), batchSize);
+                if (pendingMessages == null || pendingMessages.isEmpty()) {
+                    return;
+                }
+                Duration minIdle = Duration.ofSeconds(recoveryMinIdleSeconds);
+                List<RecordId> retryIds = new ArrayList<>();
+                for (PendingMessage pendingMessage : pendingMessages) {
+                    //1.1 还在消费者手里处理的消息不认领
+                    if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                        continue;
+                    }
+                    //1.2 超过重试次数，转入死信队列
+                    if (pendingMessage.getTotalDeliveryCount() > maxRetries) {
+                        deadLetter(pendingMessage);
+                        continue;
+                    }
+                    retryIds.add(pendingMessage.getId());
+                }
+                if (retryIds.isEmpty()) {
+                    return;
+                }
+                //2.认领消息 XCLAIM stream.orders g1 recovery minIdle id1 id2 ...，投递次数加一
+                List<MapRecord<String, Object, Object>> records = claim(minIdle, retryIds);
+                if (records.isEmpty()) {
+                    return;
+                }
+                //3.重新走组提交，成功的消息会被确认
+                handleVoucherOrders(records);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("处理pending-list异常", e);
+            }
+        }
+
+        /**
+         * XCLAIM认领消息，StreamOperations没有claim，通过连接执行后自己反序列化
+         *
+         * @param minIdle
+         * @param ids
+         * @return 认领到的消息
+         */
+        private List<MapRecord<String, Object, Object>> claim(Duration minIdle, List<RecordId> ids) {
+            RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(serializer.serialize(SECKILL_STREAM_KEY), SECKILL_STREAM_GROUP,
+                            RECOVERY_CONSUMER, RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+            if (claimed == null || claimed.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+            for (ByteRecord byteRecord : claimed) {
+                MapRecord<String, String, String> record = byteRecord.deserialize(serializer, serializer, serializer);
+                records.add(StreamRecords.<String, Object, Object>mapBacked(new HashMap<Object, Object>(record.getValue()))
+                        .withStreamKey(SECKILL_STREAM_KEY)
+                        .withId(record.getId()));
+            }
+            return records;
+        }
+
+        /**
+         * 把超过重试次数的消息写入死信队列，并从pending-list中确认掉
          *
-         * @param voucherOrder
+         * @param pendingMessage
          */
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            //尝试创建锁对象
-            Long userId = voucherOrder.getUserId();
-            Long voucherId = voucherOrder.getVoucherId();
-            //SimpleRedisLock simpleRedisLock = new SimpleRedisLock("order" + userId + ":" + voucherId, stringRedisTemplate);
-            RLock lock = redissonClient.getLock("lock:order" + userId + ":" + voucherId);
-            //获取锁
-            //boolean isLock = simpleRedisLock.tryLock(1200L);
-            boolean isLock = lock.tryLock();
-            if (!isLock) {
-                //获取锁失败，返回错误或重试
-                log.error("不允许重复下单");
+        private void deadLetter(PendingMessage pendingMessage) {
+            String id = pendingMessage.getIdAsString();
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(SECKILL_STREAM_KEY, Range.closed(id, id));
+            if (records != null && !records.isEmpty()) {
+                Map<Object, Object> fields = new HashMap<>(records.get(0).getValue());
+                fields.put("sourceId", id);
+                fields.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+                stringRedisTemplate.opsForStream().add(SECKILL_DLQ_KEY, fields);
             }
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, id);
+            log.error("订单消息{}超过重试次数，已转入死信队列", id);
+        }
+
+        /**
+         * 把无法解析的消息写入死信队列并确认，不影响同一批中的其他消息
+         *
+         * @param record
+         * @param e 解析异常
+         */
+        private void deadLetter(MapRecord<String, Object, Object> record, Exception e) {
+            String id = record.getId().getValue();
+            Map<Object, Object> fields = new HashMap<>(record.getValue());
+            fields.put("sourceId", id);
+            fields.put("error", String.valueOf(e.getMessage()));
+            stringRedisTemplate.opsForStream().add(SECKILL_DLQ_KEY, fields);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, id);
+            log.error("订单消息{}无法解析，已转入死信队列", id, e);
+        }
+
+        /**
+         * 解析一条订单消息
+         *
+         * @param record
+         * @return
+         */
+        private VoucherOrder parseOrder(MapRecord<String, Object, Object> record) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (order.getId() == null || order.getUserId() == null || order.getVoucherId() == null) {
+                throw new IllegalArgumentException("订单消息缺少字段：" + record.getValue());
+            }
+            return order;
+        }
+
+        /**
+         * 解析一批消息交给组提交线程，等待每个订单的结果，再用一条XACK确认已处理完的消息
+         * 写库异常的消息不确认，留在pending-list中等待重试；无法解析的消息单独转入死信队列，其余消息照常处理
+         *
+         * @param records
+         */
+        private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) throws InterruptedException {
+            //1.逐条解析订单中的信息，放入组提交队列
+            List<PendingOrder> pendingOrders = new ArrayList<>(records.size());
+            List<RecordId> pendingIds = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder order;
+                try {
+                    order = parseOrder(record);
+                } catch (Exception e) {
+                    deadLetter(record, e);
+                    continue;
+                }
+                PendingOrder pendingOrder = new PendingOrder(order);
+                pendingOrders.add(pendingOrder);
+                pendingIds.add(record.getId());
+                groupCommitQueue.add(pendingOrder);
+            }
+            //2.等待组提交结果，成功下单和业务失败（重复下单、库存不足）都可以确认
+            List<RecordId> ids = new ArrayList<>(pendingOrders.size());
+            boolean failed = false;
+            for (int i = 0; i < pendingOrders.size(); i++) {
+                try {
+                    pendingOrders.get(i).getResult().get(30, TimeUnit.SECONDS);
+                    ids.add(pendingIds.get(i));
+                } catch (ExecutionException | TimeoutException e) {
+                    failed = true;
+                }
+            }
+            //3.ACK确认，XACK stream.orders g1 id1 id2 ...
+            if (!ids.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, ids.toArray(new RecordId[0]));
+            }
+            if (failed) {
+                throw new RuntimeException("部分订单写入失败");
+            }
+        }
+
+        /**
+         * 组提交线程，收集一个窗口内的订单，按优惠券分组后交给写库线程池
+         */
+        private class GroupCommitter implements Runnable {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        //1.阻塞等待窗口内的第一个订单
+                        PendingOrder first = groupCommitQueue.poll(2, TimeUnit.SECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        //2.在窗口时间内继续收集，直到窗口结束或达到上限
+                        List<PendingOrder> window = new ArrayList<>();
+                        window.add(first);
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitWindowMs);
+                        while (window.size() < groupCommitMaxSize) {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            PendingOrder next = groupCommitQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                            if (next == null) {
+                                break;
+                            }
+                            window.add(next);
+                        }
+                        //3.按优惠券分组，每组一个事务
+                        Map<Long, List<PendingOrder>> groups = window.stream()
+                                .collect(Collectors.groupingBy(p -> p.getOrder().getVoucherId()));
+                        groups.forEach((voucherId, group) -> groupCommitExecutor.submit(() -> commitGroup(voucherId, group)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 提交一组订单，并把结果回填给等待的消费者
+         *
+         * @param voucherId
+         * @param group
+         */
+        private void commitGroup(Long voucherId, List<PendingOrder> group) {
             try {
-                //获取代理对象(事务)
-                object.createVoucherOrder(voucherOrder);
-            } finally {
-                //释放锁
-                //simpleRedisLock.unlock();
-                lock.unlock();
+                List<VoucherOrder> orders = group.stream().map(PendingOrder::getOrder).collect(Collectors.toList());
+                List<Boolean> results = object.createVoucherOrderGroup(voucherId, orders);
+                for (int i = 0; i < group.size(); i++) {
+                    group.get(i).getResult().complete(results.get(i));
+                }
+            } catch (Exception e) {
+                log.error("组提交订单异常", e);
+                group.forEach(p -> p.getResult().completeExceptionally(e));
             }
         }
 
+        /**
+         * 等待组提交的订单
+         */
+        @Getter
+        private static class PendingOrder {
+            private final VoucherOrder order;
+            private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+            PendingOrder(VoucherOrder order) {
+                this.order = order;
+            }
+        }
 
         /**
          * 秒杀优惠券，查询是否可以秒杀
@@ -195,33 +465,109 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
          */
         @Override
         public Result seckIllVoucher(Long voucherId) {
+            //0.本地已经标记售罄且本地租约也为空，直接拒绝，不再访问redis
+            if (seckillSoldOutRegistry.isSoldOut(voucherId) && !seckillStockLease.hasStock(voucherId)) {
+                return Result.fail("库存不足");
+            }
+            //0.1 订单积压超过阈值，拒绝新请求，保护redis内存和数据库
+            if (!orderStreamMonitor.isAdmitting()) {
+                return Result.fail("系统繁忙，请" + orderStreamMonitor.getRetryAfterSeconds() + "秒后重试");
+            }
+            //0.2 开启库存租约时，先在本地扣减库存
+            //租约失败不代表售罄（还没有预热、库存在其他节点的租约中），交给lua脚本判断，只有脚本返回库存不足才标记售罄
+            boolean leased = seckillStockLease.isEnabled() && seckillStockLease.tryAcquire(voucherId);
             Long userId = UserHolder.getUser().getId();
             Long orderId = redisIdWorker.nextId("order");
-            //1.执行lua脚本
-            Long result = stringRedisTemplate.execute(
-                    //0，下单成功，1，库存不足，2，重复下单或者订单不存在
-                    SECKILL_SCRIPT,
-                    Collections.emptyList(),
-                    //voucherId
-                    voucherId.toString(),
-                    //userid
-                    userId.toString(),
-                    //orderId
-                    orderId.toString()
-            );
+            hotKeyDetector.record(seckillStockShards.voucherKey(voucherId));
+            //1.执行lua脚本，开启微批处理时与同一窗口内的其他请求合并执行
+            Long result;
+            if (seckillBatcher.isEnabled()) {
+                CompletableFuture<Long> future = seckillBatcher.submit(voucherId, userId, orderId, leased);
+                result = seckillBatcher.await(future);
+                if (result == null) {
+                    //1.1 等待超时，结果未知：脚本可能已经扣减库存并写入订单消息，既不能按失败处理也不能按成功返回
+                    //结果到达后再归还租约、标记售罄；返回确认中和订单id，由前端通过状态接口查询结果
+                    boolean leasedAttempt = leased;
+                    future.thenAccept(late -> {
+                        if (late != 0) {
+                            seckillFailed(voucherId, late, leasedAttempt);
+                        }
+                    });
+                    log.warn("秒杀批处理等待超时，订单{}结果待确认", orderId);
+                    return Result.fail(SECKILL_PENDING, orderId);
+                }
+            } else {
+                result = stringRedisTemplate.execute(
+                        //0，下单成功，1，库存不足，2，重复下单或者订单不存在，3，秒杀尚未开始，4，秒杀已经结束
+                        SECKILL_SCRIPT,
+                        //订单集合和各个库存分片
+                        seckillStockShards.scriptKeys(voucherId),
+                        //voucherId
+                        voucherId.toString(),
+                        //userid
+                        userId.toString(),
+                        //orderId
+                        orderId.toString(),
+                        //优先扣减的库存分片
+                        String.valueOf(seckillStockShards.shardOf(userId)),
+                        //库存是否已经从本地租约中扣减
+                        leased ? "1" : "0",
+                        //当前时间，脚本据此判断秒杀是否开始或结束
+                        String.valueOf(System.currentTimeMillis())
+                );
+            }
             //2.根据lua脚本的结果判断是否有秒杀资格
             //2.1 秒杀资格结果不为0，没有购买资格
             if (result != 0) {
-                return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
+                return Result.fail(seckillFailed(voucherId, result, leased));
             }
 
-            //2.5 提前获取代理对象
-            object = (IVoucherOrderService) AopContext.currentProxy();
             //3. 返回订单id
             return Result.ok(orderId);
             //
         }
 
+        /**
+         * 查询当前用户是否已经抢到该秒杀券，以redis中的订单集合为准
+         *
+         * @param voucherId
+         * @return
+         */
+        @Override
+        public Result querySeckillStatus(Long voucherId) {
+            Long userId = UserHolder.getUser().getId();
+            Boolean ordered = stringRedisTemplate.opsForSet()
+                    .isMember(seckillStockShards.orderKey(voucherId), userId.toString());
+            return Result.ok(Boolean.TRUE.equals(ordered));
+        }
+
+        /**
+         * 没有秒杀资格时归还租约中扣减的库存，库存不足时标记售罄
+         *
+         * @param voucherId
+         * @param result lua脚本的结果，不为0
+         * @param leased 库存是否已经从本地租约中扣减
+         * @return 失败原因
+         */
+        private String seckillFailed(Long voucherId, long result, boolean leased) {
+            if (leased) {
+                //没有下单成功，把租约中扣减的库存还回去
+                seckillStockLease.release(voucherId);
+            }
+            if (result == 1) {
+                //库存不足，标记售罄并广播
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+                return "库存不足";
+            }
+            if (result == 3) {
+                return "秒杀尚未开始";
+            }
+            if (result == 4) {
+                return "秒杀已经结束";
+            }
+            return "不能重复下单";
+        }
+
 //    使用阻塞队列实现异步更新
 //    @Override
 //    public Result seckIllVoucher(Long voucherId) {
@@ -329,4 +675,55 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             //8.写入数据库
             save(order);
         }
+
+        /**
+         * 组提交：同一优惠券的一组订单在一个事务中完成，一次扣减N个库存，一次多行insert
+         * 返回值与入参顺序一一对应，true表示下单成功，false表示重复下单或库存不足
+         *
+         * @param voucherId
+         * @param orders
+         * @return
+         */
+        @Override
+        @Transactional
+        public List<Boolean> createVoucherOrderGroup(Long voucherId, List<VoucherOrder> orders) {
+            List<Boolean> results = new ArrayList<>(orders.size());
+            //1.锁定库存行，整组只竞争一次行锁 SELECT ... FOR UPDATE
+            SeckillVoucher voucher = seckillVoucherService.query()
+                    .eq("voucher_id", voucherId).last("FOR UPDATE").one();
+            //2.一人一单判断，一次查出本组用户中已经下过单的
+            //必须在持有行锁之后查询，才能看到同一优惠券的其他组已经提交的订单
+            Set<Long> userIds = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            Set<Long> bought = query().select("user_id")
+                    .eq("voucher_id", voucherId).in("user_id", userIds).list()
+                    .stream().map(VoucherOrder::getUserId).collect(Collectors.toCollection(HashSet::new));
+            int stock = voucher == null ? 0 : voucher.getStock();
+            List<VoucherOrder> accepted = new ArrayList<>(orders.size());
+            for (VoucherOrder order : orders) {
+                //已经购买过，或者同一组中重复出现
+                if (!bought.add(order.getUserId())) {
+                    log.error(order.getUserId() + "该用户已经购买过");
+                    results.add(false);
+                    continue;
+                }
+                if (accepted.size() >= stock) {
+                    log.error("库存不足");
+                    results.add(false);
+                    continue;
+                }
+                accepted.add(order);
+                results.add(true);
+            }
+            if (accepted.isEmpty()) {
+                return results;
+            }
+            //3.一次扣减整组库存
+            seckillVoucherService.update()
+                    .setSql("stock=stock-" + accepted.size())
+                    .eq("voucher_id", voucherId)
+                    .update();
+            //4.多行insert写入数据库
+            getBaseMapper().insertBatch(accepted);
+            return results;
+        }
     }
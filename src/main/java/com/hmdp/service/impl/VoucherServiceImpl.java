@@ -1,21 +1,25 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheEvict;
+import com.hmdp.utils.CachedQuery;
+import com.hmdp.utils.SeckillVoucherScheduler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
 
 /**
  * <p>
@@ -31,21 +35,28 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private SeckillVoucherScheduler seckillVoucherScheduler;
+
     @Override
-    public Result queryVoucherOfShop(Long shopId) {
+    @CachedQuery(prefix = CACHE_VOUCHER_SHOP_KEY, key = "#shopId", ttl = 1)//包含秒杀库存，过期时间短一些
+    public List<Voucher> queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
-        return Result.ok(vouchers);
+        return getBaseMapper().queryVoucherOfShop(shopId);
+    }
+
+    @Override
+    @CacheEvict(prefix = CACHE_VOUCHER_SHOP_KEY, key = "#voucher.shopId")
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
     }
 
     @Override
     @Transactional
+    @CacheEvict(prefix = CACHE_VOUCHER_SHOP_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
@@ -53,5 +64,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 安排预热和清理，秒杀开始前写入Redis库存并清除各节点的售罄标记，已经开始则立即写入
+        // 事务提交后再安排，回滚时不会在Redis中留下数据库里不存在的秒杀券
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    seckillVoucherScheduler.schedule(seckillVoucher);
+                }
+            });
+        } else {
+            seckillVoucherScheduler.schedule(seckillVoucher);
+        }
     }
 }
@@ -0,0 +1,240 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 热门博客排行
+ * blog:hot 按热度分排序，热度分 = log10(max(点赞数,1)) + (发布时间 - 基准时间) / 衰减周期
+ * 分数只和点赞数、发布时间有关，点赞、取消点赞和发布时O(log N)更新一篇，时间流逝不需要重算；
+ * 基准时间定期前移，所有分数减去相同的值，排序不变，同时裁剪排行长度
+ * 启动时排行不存在则流式读取tb_blog初始化
+ */
+@Slf4j
+@Component
+public class BlogHotRanking implements ApplicationRunner {
+
+    //热度衰减周期，早发布一个周期的博客需要多10倍的点赞才能和后发布的持平
+    @Value("${hmdp.blog.hot.decay-seconds:45000}")
+    private long decaySeconds;
+
+    //排行最多保留的博客数量
+    @Value("${hmdp.blog.hot.max-size:10000}")
+    private long maxSize;
+
+    //基准时间前移的间隔
+    @Value("${hmdp.blog.hot.rebase-hours:24}")
+    private long rebaseHours;
+
+    //初始化时每批写入的博客数量
+    @Value("${hmdp.blog.hot.seed-batch-size:500}")
+    private int seedBatchSize;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private BlogMapper blogMapper;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> REBASE_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("blog_hot_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        REBASE_SCRIPT = new DefaultRedisScript<>();
+        REBASE_SCRIPT.setLocation(new ClassPathResource("blog_hot_rebase.lua"));
+        REBASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        seed();
+        scheduler.scheduleWithFixedDelay(this::rebase, rebaseHours, rebaseHours, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+    }
+
+    public long getDecaySeconds() {
+        return decaySeconds;
+    }
+
+    /**
+     * 新发布的博客加入排行
+     * @param blog
+     */
+    public void add(Blog blog) {
+        long created = toSeconds(blog.getCreateTime());
+        int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+        stringRedisTemplate.execute(
+                ADD_SCRIPT,
+                Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_CREATED_KEY, BLOG_HOT_BASE_KEY),
+                blog.getId().toString(),
+                String.valueOf(created),
+                String.valueOf(liked),
+                String.valueOf(decaySeconds));
+    }
+
+    /**
+     * 按热度倒序分页读取博客id
+     * @param current 页码，从1开始
+     * @param size
+     * @return
+     */
+    public List<Long> page(int current, int size) {
+        long start = (long) (current - 1) * size;
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, start, start + size - 1);
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return ids.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 基准时间前移到当前时间，并裁剪排行长度，多个节点同一时间只有一个在执行
+     */
+    public void rebase() {
+        RLock lock = redissonClient.getLock("lock:blog:hot");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Long size = stringRedisTemplate.execute(
+                    REBASE_SCRIPT,
+                    Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_BASE_KEY, BLOG_HOT_CREATED_KEY),
+                    String.valueOf(System.currentTimeMillis() / 1000),
+                    String.valueOf(decaySeconds),
+                    String.valueOf(maxSize));
+            log.info("热门博客排行基准时间前移完成，排行长度{}", size);
+        } catch (Exception e) {
+            log.error("热门博客排行基准时间前移失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 排行不存在时从数据库初始化，分数用数据库中的点赞数计算
+     */
+    private void seed() {
+        RLock lock = redissonClient.getLock("lock:blog:hot");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+                return;
+            }
+            stringRedisTemplate.opsForValue().setIfAbsent(BLOG_HOT_BASE_KEY,
+                    String.valueOf(System.currentTimeMillis() / 1000));
+            long base = Long.parseLong(stringRedisTemplate.opsForValue().get(BLOG_HOT_BASE_KEY));
+            List<Blog> batch = new ArrayList<>(seedBatchSize);
+            long[] count = {0};
+            blogMapper.scanForHot(context -> {
+                batch.add(context.getResultObject());
+                if (batch.size() >= seedBatchSize) {
+                    count[0] += write(batch, base);
+                }
+            });
+            if (!batch.isEmpty()) {
+                count[0] += write(batch, base);
+            }
+            trim();
+            log.info("热门博客排行初始化完成，写入{}篇", count[0]);
+        } catch (Exception e) {
+            log.error("热门博客排行初始化失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只保留热度最高的maxSize篇，移出排行的博客同时删除发布时间
+     */
+    private void trim() {
+        Set<String> dropped = stringRedisTemplate.opsForZSet().range(BLOG_HOT_KEY, 0, -maxSize - 1);
+        if (dropped == null || dropped.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>(dropped);
+        for (int i = 0; i < ids.size(); i += seedBatchSize) {
+            List<String> part = ids.subList(i, Math.min(i + seedBatchSize, ids.size()));
+            stringRedisTemplate.opsForHash().delete(BLOG_HOT_CREATED_KEY, part.toArray());
+            stringRedisTemplate.opsForZSet().remove(BLOG_HOT_KEY, part.toArray());
+        }
+    }
+
+    /**
+     * 一次pipeline写入一批博客的发布时间和热度分
+     */
+    private int write(List<Blog> batch, long base) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Blog blog : batch) {
+                String id = blog.getId().toString();
+                long created = toSeconds(blog.getCreateTime());
+                int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                stringConnection.hSet(BLOG_HOT_CREATED_KEY, id, String.valueOf(created));
+                stringConnection.zAdd(BLOG_HOT_KEY, score(liked, created, base), id);
+            }
+            return null;
+        });
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+
+    /**
+     * 热度分，和lua脚本中的公式相同
+     */
+    private double score(long liked, long created, long base) {
+        return Math.log10(Math.max(liked, 1)) + (double) (created - base) / decaySeconds;
+    }
+
+    /**
+     * 发布时间转为秒，刚保存的博客还没有从数据库读回发布时间，按当前时间计算
+     */
+    private static long toSeconds(LocalDateTime time) {
+        if (time == null) {
+            return System.currentTimeMillis() / 1000;
+        }
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.service.IBlogService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 点赞数回写
+ * 点赞时只标记博客id到 blog:liked:dirty，这里定期把标记过的博客的点赞数（基数 + 点赞zset的ZCARD）批量写回tb_blog.liked
+ * 写回的是绝对值而不是增量，重复写入结果相同；标记先SMOVE到processing集合，写库成功后才删除，
+ * 节点在写库前后崩溃时下一轮会重新处理processing中的博客，点赞数最终和redis一致
+ */
+@Slf4j
+@Component
+public class BlogLikeFlusher {
+
+    //回写间隔
+    @Value("${hmdp.blog.like.flush-millis:1000}")
+    private long flushMillis;
+
+    //每批回写的博客数量
+    @Value("${hmdp.blog.like.flush-batch-size:500}")
+    private int batchSize;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IBlogService blogService;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+        //关闭前再回写一次
+        flush();
+    }
+
+    /**
+     * 回写所有标记过的博客，多个节点同一时间只有一个在回写
+     */
+    public void flush() {
+        RLock lock = redissonClient.getLock("lock:blog:liked:flush");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //先处理上次崩溃遗留在processing中的博客
+            List<String> ids = new ArrayList<>(members(BLOG_LIKED_PROCESSING_KEY));
+            if (!ids.isEmpty()) {
+                write(ids);
+            }
+            //每轮只处理开始时dirty中的数量，热点博客不断被重新标记时也能结束本轮
+            long remaining = size(BLOG_LIKED_DIRTY_KEY);
+            while (remaining > 0) {
+                int count = (int) Math.min(batchSize, remaining);
+                remaining -= count;
+                ids = claim(count);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                write(ids);
+            }
+        } catch (Exception e) {
+            log.error("点赞数回写失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从dirty中取出一批博客移动到processing
+     * @param count 最多取出的数量
+     * @return 成功移动的博客id
+     */
+    private List<String> claim(int count) {
+        Set<String> members = stringRedisTemplate.opsForSet().distinctRandomMembers(BLOG_LIKED_DIRTY_KEY, count);
+        if (members == null || members.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> candidates = new ArrayList<>(members);
+        List<Object> moved = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String id : candidates) {
+                stringConnection.sMove(BLOG_LIKED_DIRTY_KEY, BLOG_LIKED_PROCESSING_KEY, id);
+            }
+            return null;
+        });
+        List<String> ids = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            if (Boolean.TRUE.equals(moved.get(i))) {
+                ids.add(candidates.get(i));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 一次pipeline读取点赞数，批量更新数据库，成功后清除processing标记
+     * 没有基数的博客（redis数据丢失）不回写，避免用不完整的点赞数覆盖数据库
+     * @param ids
+     */
+    private void write(List<String> ids) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String id : ids) {
+                stringConnection.hGet(BLOG_LIKED_BASE_KEY, id);
+                stringConnection.zCard(BLOG_LIKED_KEY + id);
+            }
+            return null;
+        });
+        List<Blog> blogs = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String base = (String) results.get(i * 2);
+            if (base == null) {
+                log.warn("博客{}没有点赞数基数，跳过回写", ids.get(i));
+                continue;
+            }
+            Blog blog = new Blog();
+            blog.setId(Long.valueOf(ids.get(i)));
+            blog.setLiked(Integer.parseInt(base) + ((Long) results.get(i * 2 + 1)).intValue());
+            blogs.add(blog);
+        }
+        if (!blogs.isEmpty()) {
+            blogService.updateBatchById(blogs);
+        }
+        stringRedisTemplate.opsForSet().remove(BLOG_LIKED_PROCESSING_KEY, ids.toArray());
+        log.debug("回写{}篇博客的点赞数", ids.size());
+    }
+
+    private long size(String key) {
+        Long size = stringRedisTemplate.opsForSet().size(key);
+        return size == null ? 0 : size;
+    }
+
+    private Set<String> members(String key) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(key);
+        return members == null ? new HashSet<>() : members;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+
+/**
+ * 布隆过滤器，判断一个id是否可能存在
+ * 位数组大小和哈希次数根据预计元素数量和期望误判率计算，存储由子类实现（本地内存或redis bitmap）
+ */
+public abstract class BloomFilter {
+
+    // 位数组大小
+    protected final long bitSize;
+    // 哈希函数个数
+    protected final int hashCount;
+
+    protected BloomFilter(long expectedInsertions, double fpp) {
+        // m = -n * ln(p) / (ln2)^2
+        this.bitSize = Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        // k = m / n * ln2
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * 添加元素
+     * @param value
+     */
+    public abstract void put(long value);
+
+    /**
+     * 批量添加元素
+     * @param values
+     */
+    public void putAll(Collection<Long> values) {
+        for (Long value : values) {
+            put(value);
+        }
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false时一定不存在
+     * @param value
+     * @return
+     */
+    public abstract boolean mightContain(long value);
+
+    /**
+     * 已经置为1的位数
+     * @return
+     */
+    public abstract long bitCount();
+
+    /**
+     * 位数组占用的内存字节数
+     * @return
+     */
+    public long memoryBytes() {
+        return (bitSize + 7) / 8;
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 按当前位数组的填充率估算误判率 (X / m) ^ k
+     * @return
+     */
+    public double expectedFpp() {
+        return Math.pow((double) bitCount() / bitSize, hashCount);
+    }
+
+    /**
+     * 计算元素对应的k个位置，双重哈希 h1 + i * h2
+     * @param value
+     * @return
+     */
+    protected long[] positions(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] positions = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            positions[i] = Math.floorMod(h1 + i * h2, bitSize);
+        }
+        return positions;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 声明式缓存切面，@CachedQuery按策略路由到CacheClient，@CacheEvict在事务提交后删除缓存
+ */
+@Aspect
+@Component
+public class CacheAspect {
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    private final ExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    //解析过的SpEL表达式
+    private final ConcurrentHashMap<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    @Around("@annotation(cachedQuery)")
+    public Object cached(ProceedingJoinPoint joinPoint, CachedQuery cachedQuery) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        String id = evaluate(cachedQuery.key(), method, joinPoint);
+        //按泛型返回类型反序列化
+        Type type = method.getGenericReturnType();
+        String prefix = cachedQuery.prefix();
+        //缓存未命中时执行原方法，逻辑过期重建时会在重建线程中再次执行
+        Function<String, Object> dbFallback = ignored -> proceed(joinPoint);
+        try {
+            switch (cachedQuery.strategy()) {
+                case LOGICAL_EXPIRE:
+                    return cacheClient.queryWithLogicalExpire(prefix, "lock:" + prefix,
+                            cachedQuery.unit().toSeconds(cachedQuery.ttl()), id, type, dbFallback);
+                case LOCAL_AND_REDIS:
+                    return cacheClient.queryWithPassThrough(prefix, id, type, dbFallback,
+                            cachedQuery.ttl(), cachedQuery.unit(), true);
+                default:
+                    return cacheClient.queryWithPassThrough(prefix, id, type, dbFallback,
+                            cachedQuery.ttl(), cachedQuery.unit(), false);
+            }
+        } catch (ProceedException e) {
+            //还原原方法抛出的受检异常
+            throw e.getCause();
+        }
+    }
+
+    @AfterReturning("@annotation(cacheEvict)")
+    public void evict(JoinPoint joinPoint, CacheEvict cacheEvict) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        String key = cacheEvict.prefix() + evaluate(cacheEvict.key(), method, joinPoint);
+        //事务中先不删，提交后再删，避免提交前其他请求把旧数据重新写回缓存
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    cacheClient.delete(key);
+                }
+            });
+        } else {
+            cacheClient.delete(key);
+        }
+    }
+
+    /**
+     * 计算key表达式
+     * @param expression
+     * @param method
+     * @param joinPoint
+     * @return 表达式为空时返回空字符串
+     */
+    private String evaluate(String expression, Method method, JoinPoint joinPoint) {
+        if (StrUtil.isBlank(expression)) {
+            return "";
+        }
+        EvaluationContext context = new MethodBasedEvaluationContext(
+                joinPoint.getTarget(), method, joinPoint.getArgs(), parameterNameDiscoverer);
+        Object value = expressions.computeIfAbsent(expression, parser::parseExpression).getValue(context);
+        return String.valueOf(value);
+    }
+
+    private static Object proceed(ProceedingJoinPoint joinPoint) {
+        try {
+            return joinPoint.proceed();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new ProceedException(e);
+        }
+    }
+
+    /**
+     * 包装原方法抛出的受检异常，穿过CacheClient后再还原
+     */
+    private static class ProceedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ProceedException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -1,30 +1,214 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.ArrayUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSON;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     @Autowired
     private  StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    private CacheProperties cacheProperties;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
+    //是否开启本地一级缓存
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+
+    //本地缓存最多保存的key数量，超过后按LRU淘汰
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private int localMaximumSize;
+
+    //本地缓存的过期时间，兜底跨节点失效消息丢失的情况
+    @Value("${hmdp.cache.local.ttl-seconds:60}")
+    private long localTtlSeconds;
+
+    //使用本地缓存的key前缀，多个用逗号分隔
+    @Value("${hmdp.cache.local.prefixes:}")
+    private String[] localPrefixes;
+
+    //缓存重建线程数
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int rebuildThreads;
+
+    //缓存重建任务队列长度，队列满时丢弃重建任务，继续返回旧数据
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int rebuildQueueCapacity;
+
+    //提前刷新的系数，越大越早刷新，0表示只在逻辑过期后刷新
+    @Value("${hmdp.cache.refresh.beta:1.0}")
+    private double refreshBeta;
+
+    //设置了查询超时的数据库查询线程数，线程用满时在调用线程执行
+    @Value("${hmdp.cache.db-threads:32}")
+    private int dbThreads;
+
+    //本地一级缓存，保存反序列化后的对象，命中时不需要访问redis也不需要解析json
+    private LRUCache<String, Object> localCache;
+
+    //本地缓存中的空值标记
+    private static final Object NULL_VALUE = new Object();
+
+    //本节点正在加载的key，同一个key的并发加载共用一个future，只有一个线程访问数据库
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    //缓存重建线程池，有界队列，同一个key由inFlight去重
+    private ThreadPoolExecutor rebuildExecutor;
+
+    //带超时的数据库查询线程池
+    private ThreadPoolExecutor dbExecutor;
+
+    //开启staleOnError的前缀，每个key最后一次查到的值，数据库超时或熔断时返回
+    private LRUCache<String, Object> lastKnown;
+
+    //每个前缀的数据库熔断器
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    //缓存重建统计
+    private final AtomicLong rebuildSubmitted = new AtomicLong();
+    private final AtomicLong rebuildSucceeded = new AtomicLong();
+    private final AtomicLong rebuildFailed = new AtomicLong();
+    private final AtomicLong rebuildRejected = new AtomicLong();
+    private final AtomicLong earlyRefreshes = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localMaximumSize, TimeUnit.SECONDS.toMillis(localTtlSeconds));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        AtomicInteger threadIndex = new AtomicInteger();
+        rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueCapacity),
+                runnable -> new Thread(runnable, "cache-rebuild-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        lastKnown = CacheUtil.newLRUCache(localMaximumSize);
+        AtomicInteger dbThreadIndex = new AtomicInteger();
+        dbExecutor = new ThreadPoolExecutor(dbThreads, dbThreads, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                runnable -> new Thread(runnable, "cache-db-" + dbThreadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdown();
+        dbExecutor.shutdown();
+    }
+
+    /**
+     * 缓存重建统计
+     * @return 提交、成功、失败、被拒绝、提前刷新的次数以及当前队列长度
+     */
+    public Map<String, Object> rebuildStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("submitted", rebuildSubmitted.get());
+        stats.put("succeeded", rebuildSucceeded.get());
+        stats.put("failed", rebuildFailed.get());
+        stats.put("rejected", rebuildRejected.get());
+        stats.put("earlyRefreshes", earlyRefreshes.get());
+        stats.put("queued", rebuildExecutor.getQueue().size());
+        stats.put("active", rebuildExecutor.getActiveCount());
+        return stats;
+    }
+
+    /**
+     * 删除缓存，同时清除本节点的本地缓存，并广播给其他节点
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 收到其他节点的失效消息，清除本地缓存
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 该前缀是否使用本地缓存
+     * @param keyPrefix
+     * @return
+     */
+    private boolean isLocal(String keyPrefix) {
+        return localEnabled && ArrayUtil.contains(localPrefixes, keyPrefix);
+    }
+
+    /**
+     * 记录一次访问，并返回该key在本地缓存中的过期时间
+     * 配置了本地缓存的前缀使用配置的过期时间，其他前缀的热点key自动提升到本地缓存，使用较短的过期时间
+     * @param keyPrefix
+     * @param key
+     * @param forceLocal 为true时不论前缀配置都使用本地缓存
+     * @return 过期毫秒数，0表示不使用本地缓存
+     */
+    private long localTtl(String keyPrefix, String key, boolean forceLocal) {
+        boolean hot = hotKeyDetector.record(key);
+        if (forceLocal || isLocal(keyPrefix)) {
+            return TimeUnit.SECONDS.toMillis(localTtlSeconds);
+        }
+        return hot ? hotKeyDetector.getLocalTtlMillis() : 0;
+    }
+
     /**
      * 设置缓存数据，并设置普通过期时间
      * @param key
@@ -33,7 +217,22 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), jitter(key, unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        localCache.remove(key);
+    }
+
+    /**
+     * 按前缀策略给过期时间加上随机增量，同一批写入的key错开过期，避免缓存雪崩
+     * @param key
+     * @param millis
+     * @return
+     */
+    private long jitter(String key, long millis) {
+        double ratio = cacheProperties.policyFor(key).getJitterRatio();
+        if (ratio <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ratio * ThreadLocalRandom.current().nextDouble());
     }
 
     /**
@@ -42,10 +241,61 @@ public class CacheClient {
      * @param value
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, 0L);
+    }
+
+    /**
+     * 设置缓存数据，并设置逻辑过期时间和重建耗时
+     * @param key
+     * @param value
+     * @param delta 重建耗时（毫秒），耗时越长越早开始提前刷新
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long delta){
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(key, unit.toMillis(time)), ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        localCache.remove(key);
+    }
+
+    /**
+     * 批量设置逻辑过期的缓存数据，一次pipeline写入
+     * @param values key到数据的映射
+     * @param time
+     * @param unit
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        setBatchWithLogicalExpire(values, time, unit, false);
+    }
+
+    /**
+     * 批量设置逻辑过期的缓存数据，一次pipeline写入
+     * @param values key到数据的映射
+     * @param time
+     * @param unit
+     * @param ifAbsent 为true时用SET NX，已经存在的key不覆盖
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit, boolean ifAbsent) {
+        LocalDateTime now = LocalDateTime.now();
+        long millis = unit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            values.forEach((key, value) -> {
+                RedisData redisData = new RedisData();
+                redisData.setData(value);
+                //每个key单独加随机增量，一起预热的key不会一起过期
+                redisData.setExpireTime(now.plus(jitter(key, millis), ChronoUnit.MILLIS));
+                redisData.setDelta(0L);
+                if (ifAbsent) {
+                    stringConnection.setNX(key, JSONUtil.toJsonStr(redisData));
+                } else {
+                    stringConnection.set(key, JSONUtil.toJsonStr(redisData));
+                }
+            });
+            return null;
+        });
+        values.keySet().forEach(localCache::remove);
     }
 
     /**
@@ -56,27 +306,225 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> typeReturn , Class<ID> typeID , Function<ID, R> dbFallback
     ,Long time, TimeUnit unit) {
+        return queryWithPassThrough(keyPrefix, id, (Type) typeReturn, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 缓存穿透获取数据，返回类型可以是泛型类型，例如List<ShopType>
+     * @param forceLocal 为true时不论前缀配置都使用本地一级缓存
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Type typeReturn, Function<ID, R> dbFallback,
+                                          Long time, TimeUnit unit, boolean forceLocal) {
+        String key = keyPrefix + id;
+        long localTtl = localTtl(keyPrefix, key, forceLocal);
+        boolean local = localTtl > 0;
+        //0.先查本地缓存
+        if (local) {
+            Object cached = localCache.get(key, false);
+            if (cached != null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.TIER_LOCAL, cached == NULL_VALUE ? CacheMetrics.NULL : CacheMetrics.HIT);
+                return cached == NULL_VALUE ? null : (R) cached;
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_LOCAL, CacheMetrics.MISS);
+        }
         //1.在redis中查缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
+        String json = stringRedisTemplate.opsForValue().get(key);
         //2.内存命中
         if (StrUtil.isNotBlank(json)) {
             //直接返回
-            return JSONUtil.toBean(json, typeReturn);
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.HIT);
+            R r = JSONUtil.toBean(json, typeReturn, false);
+            if (local) {
+                localCache.put(key, r, localTtl);
+            }
+            remember(key, r);
+            return r;
         }
         //内存命中，但是数据为空
         if (json != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.NULL);
+            if (local) {
+                localCache.put(key, NULL_VALUE, localTtl);
+            }
             return null;
         }
-        //3.缓存未命中，查数据库
-        R r = dbFallback.apply(id);
-        //4.数据不存在，返回错误,并在redis中写入空值
-        if (r == null) {
-            stringRedisTemplate.opsForValue().set(keyPrefix + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.MISS);
+        //3.缓存未命中，本节点同一个key只让一个线程查数据库，其余线程等待它的结果
+        return singleFlight(key, () -> {
+            R r;
+            try {
+                r = loadFromDb(keyPrefix, key, () -> dbFallback.apply(id));
+            } catch (RuntimeException e) {
+                //数据库超时或熔断，按策略返回最后一次的值，不写缓存
+                return staleOrThrow(key, typeReturn, e);
+            }
+            //4.数据不存在，返回错误,并在redis中写入空值
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                if (local) {
+                    localCache.put(key, NULL_VALUE, localTtl);
+                }
+                return null;
+            }
+            //5.数据存在，写入缓存
+            this.set(key, r, time, unit);
+            if (local) {
+                localCache.put(key, r, localTtl);
+            }
+            remember(key, r);
+            return r;
+        });
+    }
+
+    /**
+     * 同一个key的并发加载合并为一次
+     * 第一个到达的线程执行loader，其余线程等待同一个future的结果，加载完成后移除，下一次未命中重新加载
+     * @param key
+     * @param loader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量查询，解决缓存穿透
+     * 命中的数据用一次MGET获取，未命中的用一次批量查询数据库，回写缓存（包括空值）用一次pipeline
+     * @param keyPrefix
+     * @param ids
+     * @param typeReturn
+     * @param dbFallback 根据一批id查询数据库
+     * @param idGetter 从数据库结果中取id，用于和请求的id对应
+     * @return id到数据的映射，按请求顺序排列，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> typeReturn,
+                                                        Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                        Long time, TimeUnit unit) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return result;
+        }
+        //0.先查本地缓存
+        Map<ID, Long> localTtls = new HashMap<>();
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            long localTtl = localTtl(keyPrefix, keyPrefix + id, false);
+            if (localTtl > 0) {
+                localTtls.put(id, localTtl);
+            }
+            Object cached = localTtl > 0 ? localCache.get(keyPrefix + id, false) : null;
+            if (localTtl > 0) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.TIER_LOCAL,
+                        cached == null ? CacheMetrics.MISS : cached == NULL_VALUE ? CacheMetrics.NULL : CacheMetrics.HIT);
+            }
+            if (cached == null) {
+                remoteIds.add(id);
+                result.put(id, null);
+            } else if (cached != NULL_VALUE) {
+                result.put(id, typeReturn.cast(cached));
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        //1.一次MGET查redis
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        for (ID id : remoteIds) {
+            keys.add(keyPrefix + id);
+        }
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            String json = jsons == null ? null : jsons.get(i);
+            //2.内存命中
+            if (StrUtil.isNotBlank(json)) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.HIT);
+                R r = JSONUtil.toBean(json, typeReturn);
+                result.put(id, r);
+                if (localTtls.containsKey(id)) {
+                    localCache.put(keyPrefix + id, r, localTtls.get(id));
+                }
+                continue;
+            }
+            //内存命中，但是数据为空
+            if (json != null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.NULL);
+                result.remove(id);
+                if (localTtls.containsKey(id)) {
+                    localCache.put(keyPrefix + id, NULL_VALUE, localTtls.get(id));
+                }
+                continue;
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.MISS);
+            missIds.add(id);
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        //3.未命中的id一次查数据库
+        Map<ID, R> loaded = new HashMap<>();
+        long loadBegin = System.nanoTime();
+        List<R> rows;
+        try {
+            rows = dbFallback.apply(missIds);
+        } catch (RuntimeException e) {
+            cacheMetrics.dbLoad(keyPrefix, System.nanoTime() - loadBegin, false);
+            throw e;
+        }
+        cacheMetrics.dbLoad(keyPrefix, System.nanoTime() - loadBegin, true);
+        for (R r : rows) {
+            loaded.put(idGetter.apply(r), r);
+        }
+        //4.一次pipeline回写，数据不存在的写入空值
+        long millis = unit.toMillis(time);
+        long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                if (r == null) {
+                    stringConnection.setEx(keyPrefix + id, nullSeconds, "");
+                } else {
+                    stringConnection.pSetEx(keyPrefix + id, jitter(keyPrefix + id, millis), JSONUtil.toJsonStr(r));
+                }
+            }
             return null;
+        });
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            if (r == null) {
+                result.remove(id);
+            } else {
+                result.put(id, r);
+            }
+            if (localTtls.containsKey(id)) {
+                localCache.put(keyPrefix + id, r == null ? NULL_VALUE : r, localTtls.get(id));
+            }
         }
-        //5.数据存在，写入缓存
-        this.set(keyPrefix + id, r, time, unit);
-        return r;
+        return result;
     }
 
     /**
@@ -99,66 +547,291 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
-    //线程池
-    private final static ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
      * 逻辑过期的方式解决缓存击穿
+     * 快过期时按概率提前刷新（XFetch），离过期越近、重建越慢，提前刷新的概率越大
      * @param id
      * @return
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix,String lockName,
                                             Long setexpireTime, ID id, Class<R> typeReturn,
                                             Function<ID, R> dbFallback) {//逻辑过期的方式解决缓存击穿
+        return queryWithLogicalExpire(keyPrefix, lockName, setexpireTime, id, (Type) typeReturn, dbFallback);
+    }
+
+    /**
+     * 逻辑过期的方式解决缓存击穿，返回类型可以是泛型类型
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, String lockName,
+                                            Long setexpireTime, ID id, Type typeReturn,
+                                            Function<ID, R> dbFallback) {
+        String key = keyPrefix + id;
+        long localTtl = localTtl(keyPrefix, key, false);
+        boolean local = localTtl > 0;
+        //0.先查本地缓存，本地缓存中保存的是已经反序列化的数据和逻辑过期时间
+        if (local) {
+            Object cached = localCache.get(key, false);
+            if (cached != null) {
+                RedisData localData = (RedisData) cached;
+                if (!shouldRefresh(localData)) {
+                    cacheMetrics.request(keyPrefix, CacheMetrics.TIER_LOCAL, CacheMetrics.HIT);
+                    return (R) localData.getData();
+                }
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_LOCAL, CacheMetrics.MISS);
+        }
         //1.在redis中查缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-        //2.内存未命中，直接返回
+        String json = stringRedisTemplate.opsForValue().get(key);
+        //2.内存未命中，说明从未预热或者已被删除，本节点只让一个线程查数据库并写入逻辑过期数据
+        if (json == null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.MISS);
+            return singleFlight(key, () -> {
+                long begin = System.currentTimeMillis();
+                R r;
+                try {
+                    r = loadFromDb(keyPrefix, key, () -> dbFallback.apply(id));
+                } catch (RuntimeException e) {
+                    return staleOrThrow(key, typeReturn, e);
+                }
+                if (r == null) {
+                    //数据不存在，写入空值
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    return null;
+                }
+                this.setWithLogicalExpire(key, r, setexpireTime, TimeUnit.SECONDS, System.currentTimeMillis() - begin);
+                remember(key, r);
+                return r;
+            });
+        }
+        //内存命中，但是数据为空
         if (StrUtil.isBlank(json)) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.NULL);
             return null;
         }
+        cacheMetrics.request(keyPrefix, CacheMetrics.TIER_REDIS, CacheMetrics.HIT);
         //3.缓存命中，看是否过期，需要将json先反序列化
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         LocalDateTime expireTime = redisData.getExpireTime();
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, typeReturn);
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        R r = JSONUtil.toBean((JSON) redisData.getData(), typeReturn, false);
+        remember(key, r);
+        boolean expired = !expireTime.isAfter(LocalDateTime.now());
+        if (!expired && local) {
+            RedisData localData = new RedisData();
+            localData.setExpireTime(expireTime);
+            localData.setDelta(redisData.getDelta());
+            localData.setData(r);
+            localCache.put(key, localData, localTtl);
+        }
+        //判断是否需要刷新
+        if (!shouldRefresh(redisData)) {
             //未过期，直接返回信息
             return r;
         }
-        //已过期，需要缓存重建
-        //尝试获取互斥锁
+        if (!expired) {
+            earlyRefreshes.incrementAndGet();
+            cacheMetrics.rebuild(keyPrefix, "early");
+        }
+        //需要缓存重建
+        //本节点已经有线程在重建，直接返回旧数据，不再去竞争redis的锁
+        //重建登记在锁名下，和未命中时的加载互不影响
         String lockkey = lockName + id;
+        CompletableFuture<Object> rebuild = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(lockkey, rebuild) != null) {
+            return r;
+        }
+        //尝试获取互斥锁，只用于和其他节点互斥
         boolean isLock = trylock(lockkey);
         //是否获取互斥锁
         if(isLock){
-            //获取成功，再次检查redis是否过期
-            String shopjsonlock = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-            RedisData redisDatalock = JSONUtil.toBean(shopjsonlock, RedisData.class);
-            LocalDateTime expireTimelock = redisDatalock.getExpireTime();
-            if(expireTimelock.isAfter(LocalDateTime.now())){
-                //未过期，直接返回信息
-                JSONObject datalock = (JSONObject) redisData.getData();
-                unLock(lockkey);
-                return JSONUtil.toBean(datalock, typeReturn);
-            }
-            //开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                //缓存重建
-                try {
-                    //访问数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(keyPrefix+id, r1, setexpireTime, TimeUnit.SECONDS);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                finally {
+            //获取成功，再次检查redis是否已被其他节点刷新
+            String shopjsonlock = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(shopjsonlock)) {
+                RedisData redisDatalock = JSONUtil.toBean(shopjsonlock, RedisData.class);
+                if(redisDatalock.getExpireTime().isAfter(expireTime)){
+                    //其他节点已经重建完成，直接返回信息
                     unLock(lockkey);
+                    finishRebuild(lockkey, rebuild);
+                    return JSONUtil.toBean((JSON) redisDatalock.getData(), typeReturn, false);
                 }
-            });
+            }
+            //开启独立线程，实现缓存重建
+            try {
+                rebuildExecutor.execute(() -> {
+                    //缓存重建
+                    try {
+                        //访问数据库，记录重建耗时
+                        long begin = System.currentTimeMillis();
+                        R r1 = loadFromDb(keyPrefix, key, () -> dbFallback.apply(id));
+                        long delta = System.currentTimeMillis() - begin;
+                        //写入redis
+                        this.setWithLogicalExpire(key, r1, setexpireTime, TimeUnit.SECONDS, delta);
+                        rebuildSucceeded.incrementAndGet();
+                        cacheMetrics.rebuild(keyPrefix, "succeeded");
+                    } catch (Exception e) {
+                        rebuildFailed.incrementAndGet();
+                        cacheMetrics.rebuild(keyPrefix, "failed");
+                        log.error("缓存重建失败，key：{}", key, e);
+                    } finally {
+                        unLock(lockkey);
+                        finishRebuild(lockkey, rebuild);
+                    }
+                });
+                rebuildSubmitted.incrementAndGet();
+                cacheMetrics.rebuild(keyPrefix, "submitted");
+            } catch (RejectedExecutionException e) {
+                //队列已满，放弃本次重建，继续返回旧数据，下次访问再尝试
+                rebuildRejected.incrementAndGet();
+                cacheMetrics.rebuild(keyPrefix, "rejected");
+                log.warn("缓存重建队列已满，放弃重建，key：{}", key);
+                unLock(lockkey);
+                finishRebuild(lockkey, rebuild);
+            }
+        } else {
+            //其他节点正在重建
+            cacheMetrics.lockFailure(keyPrefix);
+            finishRebuild(lockkey, rebuild);
         }
-        //获取失败，直接返回数据
+        //返回旧数据
         return r;
     }
+
+    /**
+     * 是否需要刷新：已过期，或者按XFetch算法命中提前刷新
+     * now - delta * beta * ln(rand) >= expireTime，ln(rand)为负数，离过期越近、delta越大越容易命中
+     * @param redisData
+     * @return
+     */
+    private boolean shouldRefresh(RedisData redisData) {
+        long now = System.currentTimeMillis();
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if (now >= expireAt) {
+            return true;
+        }
+        Long delta = redisData.getDelta();
+        if (delta == null || delta <= 0 || refreshBeta <= 0) {
+            return false;
+        }
+        double gap = -delta * refreshBeta * Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+        return now + gap >= expireAt;
+    }
+
+    /**
+     * 结束本节点对该key的重建
+     * @param lockKey
+     * @param rebuild
+     */
+    private void finishRebuild(String lockKey, CompletableFuture<Object> rebuild) {
+        inFlight.remove(lockKey, rebuild);
+        rebuild.complete(null);
+    }
+
+    /**
+     * 查询数据库，按前缀策略限制超时时间，并记录到熔断器
+     * @param keyPrefix 熔断器按前缀区分
+     * @param key
+     * @param loader
+     * @return
+     */
+    private <R> R loadFromDb(String keyPrefix, String key, Supplier<R> loader) {
+        CacheProperties.Policy policy = cacheProperties.policyFor(key);
+        CircuitBreaker breaker = breakers.computeIfAbsent(keyPrefix, prefix -> new CircuitBreaker());
+        if (!breaker.allowRequest()) {
+            cacheMetrics.dbShortCircuited(keyPrefix);
+            throw new IllegalStateException("数据库查询已熔断：" + keyPrefix);
+        }
+        long begin = System.nanoTime();
+        boolean success = false;
+        try {
+            R r;
+            if (policy.getDbTimeoutMillis() > 0) {
+                r = CompletableFuture.supplyAsync(loader, dbExecutor).get(policy.getDbTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                r = loader.get();
+            }
+            breaker.onSuccess();
+            success = true;
+            return r;
+        } catch (TimeoutException e) {
+            breaker.onFailure(policy);
+            throw new IllegalStateException("数据库查询超时：" + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breaker.onFailure(policy);
+            throw new IllegalStateException("数据库查询被中断：" + key, e);
+        } catch (ExecutionException e) {
+            breaker.onFailure(policy);
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } catch (RuntimeException e) {
+            breaker.onFailure(policy);
+            throw e;
+        } finally {
+            cacheMetrics.dbLoad(keyPrefix, System.nanoTime() - begin, success);
+        }
+    }
+
+    /**
+     * 保存最后一次查到的值，只对开启了staleOnError的前缀保存
+     * @param key
+     * @param value
+     */
+    private void remember(String key, Object value) {
+        if (value != null && cacheProperties.policyFor(key).isStaleOnError()) {
+            lastKnown.put(key, value);
+        }
+    }
+
+    /**
+     * 数据库查询失败时，开启了staleOnError并且有最后一次的值就返回它，否则抛出原异常
+     * @param key
+     * @param typeReturn
+     * @param e
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R staleOrThrow(String key, Type typeReturn, RuntimeException e) {
+        if (cacheProperties.policyFor(key).isStaleOnError()) {
+            Object stale = lastKnown.get(key, false);
+            if (stale != null) {
+                log.warn("数据库查询失败，返回旧数据，key：{}，原因：{}", key, e.getMessage());
+                return (R) stale;
+            }
+        }
+        throw e;
+    }
+
+    /**
+     * 数据库熔断器：连续失败达到阈值后熔断一段时间，熔断期间不查数据库；时间到后只放一个请求试探，成功则恢复
+     */
+    private static class CircuitBreaker {
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile long openUntil;
+
+        boolean allowRequest() {
+            long until = openUntil;
+            if (until == 0) {
+                return true;
+            }
+            if (System.currentTimeMillis() < until) {
+                return false;
+            }
+            return probing.compareAndSet(false, true);
+        }
+
+        void onSuccess() {
+            failures.set(0);
+            openUntil = 0;
+            probing.set(false);
+        }
+
+        void onFailure(CacheProperties.Policy policy) {
+            if (failures.incrementAndGet() >= policy.getBreakerFailureThreshold()) {
+                openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(policy.getBreakerOpenSeconds());
+            }
+            probing.set(false);
+        }
+    }
 }
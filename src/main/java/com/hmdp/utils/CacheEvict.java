@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法成功返回后删除缓存，处于事务中时在事务提交后删除，删除时同时清除各节点的本地缓存
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CacheEvict {
+
+    /**
+     * key前缀
+     */
+    String prefix();
+
+    /**
+     * SpEL表达式，可以引用方法参数，例如 "#voucher.shopId"；为空时key就是前缀本身
+     */
+    String key() default "";
+}
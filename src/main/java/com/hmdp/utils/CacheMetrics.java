@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的监控指标，按key前缀和缓存层级打标签，通过actuator的prometheus端点暴露
+ * cache.requests：prefix、tier（local/redis）、result（hit/null/miss）
+ * cache.db.load：数据库查询耗时直方图，prefix、outcome（success/failure）
+ * cache.db.short.circuited：熔断期间被拒绝的数据库查询
+ * cache.rebuild：逻辑过期重建，prefix、result（early/submitted/succeeded/failed/rejected）
+ * cache.lock.failures：获取重建互斥锁失败
+ */
+@Component
+public class CacheMetrics {
+
+    public static final String TIER_LOCAL = "local";
+    public static final String TIER_REDIS = "redis";
+
+    public static final String HIT = "hit";
+    public static final String NULL = "null";
+    public static final String MISS = "miss";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 记录一次缓存查询结果
+     * @param keyPrefix
+     * @param tier local或redis
+     * @param result hit、null或miss
+     */
+    public void request(String keyPrefix, String tier, String result) {
+        meterRegistry.counter("cache.requests", "prefix", keyPrefix, "tier", tier, "result", result).increment();
+    }
+
+    /**
+     * 记录一次数据库查询耗时
+     * @param keyPrefix
+     * @param nanos
+     * @param success
+     */
+    public void dbLoad(String keyPrefix, long nanos, boolean success) {
+        Timer.builder("cache.db.load")
+                .tag("prefix", keyPrefix)
+                .tag("outcome", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void dbShortCircuited(String keyPrefix) {
+        meterRegistry.counter("cache.db.short.circuited", "prefix", keyPrefix).increment();
+    }
+
+    public void rebuild(String keyPrefix, String result) {
+        meterRegistry.counter("cache.rebuild", "prefix", keyPrefix, "result", result).increment();
+    }
+
+    public void lockFailure(String keyPrefix) {
+        meterRegistry.counter("cache.lock.failures", "prefix", keyPrefix).increment();
+    }
+}
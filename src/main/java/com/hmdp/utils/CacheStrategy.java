@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+/**
+ * 声明式缓存的缓存策略
+ */
+public enum CacheStrategy {
+    /**
+     * 普通过期时间，未命中查数据库，不存在的数据写入空值
+     */
+    PASS_THROUGH,
+    /**
+     * 逻辑过期，过期后返回旧数据并异步重建，适合热点数据
+     */
+    LOGICAL_EXPIRE,
+    /**
+     * 本地一级缓存加redis二级缓存，适合很少变化的小数据
+     */
+    LOCAL_AND_REDIS
+}
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存方法的返回值，通过CacheClient查询，缓存key为 prefix + key表达式的值
+ * 返回值按方法的泛型返回类型反序列化，可以直接返回List等集合
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CachedQuery {
+
+    /**
+     * key前缀
+     */
+    String prefix();
+
+    /**
+     * SpEL表达式，可以引用方法参数，例如 "#shopId"；为空时key就是前缀本身
+     */
+    String key() default "";
+
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 过期时间，逻辑过期策略下为逻辑过期时间
+     */
+    long ttl() default 30;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 关注feed推送（推拉结合）
+ * 新博客保存后异步把博客id推送到每个粉丝的收件箱 feed:{userId}，分数为发布时间
+ * 流式读取粉丝，按批用pipeline写入，每个收件箱只保留最新的inboxMaxSize条
+ * 粉丝数达到阈值的大V不再推送，只写入自己的发件箱 feed:outbox:{authorId}，由FeedTimeline读取时合并
+ */
+@Slf4j
+@Component
+public class FeedPublisher {
+
+    //每个收件箱最多保留的博客数量
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+
+    //每批pipeline推送的粉丝数量
+    @Value("${hmdp.feed.fanout-batch-size:500}")
+    private int fanoutBatchSize;
+
+    //粉丝数达到该值的作者只写发件箱，不推送
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private long bigAuthorThreshold;
+
+    //每个发件箱最多保留的博客数量
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private long outboxMaxSize;
+
+    //推送线程数
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int fanoutThreads;
+
+    //推送任务队列长度，队列满时在发布博客的线程中推送
+    @Value("${hmdp.feed.fanout-queue-capacity:1000}")
+    private int fanoutQueueCapacity;
+
+    @Autowired
+    private FollowMapper followMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //推送线程池，有界队列
+    private ThreadPoolExecutor fanoutExecutor;
+
+    //队列已满被拒绝的推送次数
+    private final AtomicLong fanoutRejected = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        fanoutExecutor = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(fanoutQueueCapacity),
+                runnable -> new Thread(runnable, "feed-fanout-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        fanoutExecutor.shutdown();
+    }
+
+    /**
+     * 异步推送新博客到粉丝收件箱
+     * @param blog 已保存的博客
+     */
+    public void publish(Blog blog) {
+        Long blogId = blog.getId();
+        Long authorId = blog.getUserId();
+        long timestamp = System.currentTimeMillis();
+        Runnable task = () -> {
+            try {
+                if (isBigAuthor(authorId)) {
+                    writeOutbox(authorId, blogId, timestamp);
+                    log.debug("博客{}写入大V{}的发件箱", blogId, authorId);
+                    return;
+                }
+                long count = fanout(authorId, blogId, timestamp);
+                log.debug("博客{}推送完成，粉丝{}个", blogId, count);
+            } catch (Exception e) {
+                log.error("博客{}推送粉丝收件箱失败", blogId, e);
+            }
+        };
+        try {
+            fanoutExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            //队列已满，在当前线程推送，不丢失博客，同时减慢发布速度
+            log.warn("feed推送队列已满，博客{}在当前线程推送，累计被拒绝{}次", blogId, fanoutRejected.incrementAndGet());
+            task.run();
+        }
+    }
+
+    /**
+     * 是否为大V，已经标记过的作者一直按大V处理，保证历史发件箱内容始终会被合并读取
+     * @param authorId
+     * @return
+     */
+    private boolean isBigAuthor(Long authorId) {
+        String member = authorId.toString();
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHORS_KEY, member))) {
+            return true;
+        }
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers != null && followers >= bigAuthorThreshold) {
+            stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, member);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 写入作者的发件箱，并裁剪到最大长度
+     */
+    private void writeOutbox(Long authorId, Long blogId, long timestamp) {
+        String key = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.opsForZSet().add(key, blogId.toString(), timestamp);
+        stringRedisTemplate.opsForZSet().removeRange(key, 0, -outboxMaxSize - 1);
+    }
+
+    private long fanout(Long authorId, Long blogId, long timestamp) {
+        String member = blogId.toString();
+        AtomicLong count = new AtomicLong();
+        List<Long> batch = new ArrayList<>(fanoutBatchSize);
+        followMapper.scanFollowerIds(authorId, context -> {
+            batch.add(context.getResultObject());
+            if (batch.size() >= fanoutBatchSize) {
+                push(batch, member, timestamp);
+                count.addAndGet(batch.size());
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            push(batch, member, timestamp);
+            count.addAndGet(batch.size());
+        }
+        return count.get();
+    }
+
+    /**
+     * 一次pipeline写入一批粉丝的收件箱，并裁剪到最大长度
+     */
+    private void push(List<Long> followerIds, String member, long timestamp) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Long followerId : followerIds) {
+                String key = FEED_KEY + followerId;
+                stringConnection.zAdd(key, timestamp, member);
+                //按分数从小到大删除超出上限的最旧的博客
+                stringConnection.zRemRange(key, 0, -inboxMaxSize - 1);
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 读取关注feed：合并自己的收件箱和关注的大V的发件箱
+ * 每个来源都是按时间倒序的zset，一次pipeline各取前offset+count条，再按时间做k路归并
+ */
+@Component
+public class FeedTimeline {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 滚动读取一页
+     * @param userId
+     * @param max 本页最大时间戳
+     * @param offset 跳过时间戳等于max的前offset条
+     * @param count 每页条数
+     * @return 按时间倒序的博客id和时间戳
+     */
+    @SuppressWarnings("unchecked")
+    public List<ZSetOperations.TypedTuple<String>> read(Long userId, long max, int offset, int count) {
+        //1.关注的大V，他们的博客只在发件箱里
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIG_AUTHORS_KEY);
+        if (bigAuthors != null) {
+            for (String authorId : bigAuthors) {
+                keys.add(FEED_OUTBOX_KEY + authorId);
+            }
+        }
+        //2.一次pipeline从每个来源取前offset+count条
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), 0, max, 0, offset + count);
+            }
+            return null;
+        });
+        //3.k路归并，时间戳倒序，相同时间戳按博客id排序保证翻页时顺序稳定
+        PriorityQueue<Cursor> queue = new PriorityQueue<>();
+        for (Object result : results) {
+            if (result instanceof Set && !((Set<?>) result).isEmpty()) {
+                Cursor cursor = new Cursor(((Set<ZSetOperations.TypedTuple<String>>) result).iterator());
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!queue.isEmpty() && page.size() < count) {
+            Cursor cursor = queue.poll();
+            ZSetOperations.TypedTuple<String> head = cursor.head;
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            if (!seen.add(head.getValue())) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            page.add(new DefaultTypedTuple<>(head.getValue(), head.getScore()));
+        }
+        return page;
+    }
+
+    /**
+     * 一个来源的读取位置
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+        private ZSetOperations.TypedTuple<String> head;
+
+        Cursor(Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.iterator = iterator;
+        }
+
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byScore = Double.compare(other.head.getScore(), head.getScore());
+            return byScore != 0 ? byScore : head.getValue().compareTo(other.head.getValue());
+        }
+    }
+}
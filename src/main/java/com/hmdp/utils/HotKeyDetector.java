@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测
+ * 按采样率记录key的访问，用count-min sketch在滑动窗口内估算访问次数，维护top-K
+ * 估算次数超过阈值的key标记为热点，CacheClient会把热点key放进短过期的本地缓存
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    //是否开启热点探测
+    @Value("${hmdp.hotkey.enabled:true}")
+    private boolean enabled;
+
+    //采样率，只记录这个比例的访问，估算时再按比例放大
+    @Value("${hmdp.hotkey.sample-rate:0.1}")
+    private double sampleRate;
+
+    //滑动窗口长度
+    @Value("${hmdp.hotkey.window-seconds:10}")
+    private int windowSeconds;
+
+    //滑动窗口分成的格子数，每过 window/slots 秒淘汰最老的一格
+    @Value("${hmdp.hotkey.slots:5}")
+    private int slotCount;
+
+    //窗口内估算访问次数超过该值即为热点key
+    @Value("${hmdp.hotkey.threshold:1000}")
+    private long threshold;
+
+    //保留的候选key数量
+    @Value("${hmdp.hotkey.top-k:100}")
+    private int topK;
+
+    //热点key在本地缓存的过期时间
+    @Value("${hmdp.hotkey.local-ttl-millis:3000}")
+    private long localTtlMillis;
+
+    //sketch的行数（哈希函数个数）和每行的计数器个数
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    private Sketch[] slots;
+    private volatile int current;
+
+    //候选key及其最近一次的估算次数
+    private final ConcurrentHashMap<String, Long> candidates = new ConcurrentHashMap<>();
+
+    //当前的热点key
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        slots = new Sketch[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Sketch();
+        }
+        long slotMillis = TimeUnit.SECONDS.toMillis(windowSeconds) / slotCount;
+        scheduler.scheduleAtFixedRate(this::rotate, slotMillis, slotMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+    }
+
+    public long getLocalTtlMillis() {
+        return localTtlMillis;
+    }
+
+    /**
+     * 记录一次访问
+     * @param key
+     * @return 该key当前是否为热点
+     */
+    public boolean record(String key) {
+        if (!enabled) {
+            return false;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            slots[current].add(key);
+            long estimate = estimate(key);
+            //达到候选门槛才进入候选集，避免长尾key撑大候选集
+            if (candidates.size() < topK * 2 || estimate >= threshold / 10) {
+                candidates.put(key, estimate);
+            }
+            if (estimate >= threshold && !hotKeys.contains(key)) {
+                Set<String> updated = new HashSet<>(hotKeys);
+                updated.add(key);
+                hotKeys = Collections.unmodifiableSet(updated);
+                log.info("发现热点key：{}，窗口内估算访问次数：{}", key, estimate);
+            }
+        }
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 该key当前是否为热点
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        return enabled && hotKeys.contains(key);
+    }
+
+    /**
+     * 窗口内访问次数最多的key
+     * @param limit
+     * @return key、估算访问次数、是否热点，按次数倒序
+     */
+    public List<Map<String, Object>> topKeys(int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("count", entry.getValue());
+            item.put("hot", hotKeys.contains(entry.getKey()));
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * 估算key在整个窗口内的访问次数，按采样率放大
+     * @param key
+     * @return
+     */
+    private long estimate(String key) {
+        long sum = 0;
+        for (Sketch slot : slots) {
+            sum += slot.estimate(key);
+        }
+        return (long) (sum / sampleRate);
+    }
+
+    /**
+     * 窗口向前滑动一格：清空最老的格子，重新估算候选key，只保留top-K，重新计算热点key
+     */
+    private void rotate() {
+        try {
+            int next = (current + 1) % slotCount;
+            slots[next].clear();
+            current = next;
+            List<Map.Entry<String, Long>> entries = new ArrayList<>();
+            for (String key : candidates.keySet()) {
+                long estimate = estimate(key);
+                if (estimate == 0) {
+                    candidates.remove(key);
+                } else {
+                    entries.add(new AbstractMap.SimpleEntry<>(key, estimate));
+                }
+            }
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            Set<String> hot = new HashSet<>();
+            for (int i = 0; i < entries.size(); i++) {
+                Map.Entry<String, Long> entry = entries.get(i);
+                if (i >= topK) {
+                    candidates.remove(entry.getKey());
+                    continue;
+                }
+                candidates.put(entry.getKey(), entry.getValue());
+                if (entry.getValue() >= threshold) {
+                    hot.add(entry.getKey());
+                }
+            }
+            hotKeys = Collections.unmodifiableSet(hot);
+        } catch (Exception e) {
+            log.error("热点key窗口滑动异常", e);
+        }
+    }
+
+    /**
+     * count-min sketch，一格时间内的访问计数
+     */
+    private static class Sketch {
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+
+        void add(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < DEPTH; i++) {
+                counters.incrementAndGet(i * WIDTH + index(h1, h2, i));
+            }
+        }
+
+        long estimate(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters.get(i * WIDTH + index(h1, h2, i)));
+            }
+            return min;
+        }
+
+        void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+
+        private static int index(int h1, int h2, int i) {
+            return ((h1 + i * h2) & Integer.MAX_VALUE) % WIDTH;
+        }
+
+        private static long hash(String key) {
+            //FNV-1a 64位
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
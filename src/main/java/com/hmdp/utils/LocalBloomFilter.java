@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * JVM内的布隆过滤器，位数组保存在AtomicLongArray中，查询不需要网络开销
+ */
+public class LocalBloomFilter extends BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    public LocalBloomFilter(long expectedInsertions, double fpp) {
+        super(expectedInsertions, fpp);
+        this.bits = new AtomicLongArray((int) ((bitSize + 63) / 64));
+    }
+
+    @Override
+    public void put(long value) {
+        for (long position : positions(value)) {
+            int index = (int) (position >>> 6);
+            long mask = 1L << position;
+            long current;
+            do {
+                current = bits.get(index);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, current, current | mask));
+        }
+    }
+
+    @Override
+    public boolean mightContain(long value) {
+        for (long position : positions(value)) {
+            if ((bits.get((int) (position >>> 6)) & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long bitCount() {
+        long count = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            count += Long.bitCount(bits.get(i));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单stream积压监控
+ * 定期统计stream.orders的长度、pending数量和最老未确认消息的延迟，供秒杀接口做准入判断
+ * 同时把已经确认的消息用 XTRIM MINID 裁剪掉，避免stream无限增长；
+ * redis 6.2以下不支持MINID，第一次失败后改为XRANGE查出已确认的消息再XDEL
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    //统计间隔
+    @Value("${hmdp.seckill.backpressure.refresh-millis:500}")
+    private long refreshMillis;
+
+    //stream中未处理消息数的上限，超过后拒绝新的秒杀请求
+    @Value("${hmdp.seckill.backpressure.max-backlog:100000}")
+    private long maxBacklog;
+
+    //最老未确认消息的延迟上限
+    @Value("${hmdp.seckill.backpressure.max-lag-millis:10000}")
+    private long maxLagMillis;
+
+    //拒绝时提示的重试秒数
+    @Value("${hmdp.seckill.backpressure.retry-after-seconds:3}")
+    private long retryAfterSeconds;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //redis低于6.2时不支持MINID，改为每次最多XDEL的消息数和批次
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final int DELETE_MAX_BATCHES = 10;
+
+    private volatile boolean minIdSupported = true;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile long backlog;
+    private volatile long pending;
+    private volatile long lagMillis;
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 当前积压是否允许继续接收秒杀请求
+     * @return
+     */
+    public boolean isAdmitting() {
+        return backlog < maxBacklog && lagMillis < maxLagMillis;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getBacklog() {
+        return backlog;
+    }
+
+    public long getPending() {
+        return pending;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * 统计积压并裁剪已确认的消息
+     */
+    private void refresh() {
+        try {
+            //0.stream还没有创建
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STREAM_KEY))) {
+                backlog = 0;
+                pending = 0;
+                lagMillis = 0;
+                return;
+            }
+            //1.XINFO GROUPS stream.orders，找到g1最后投递的消息
+            //必须先于XPENDING读取：之后才投递的消息一定在lastDeliveredId之后，不会被下面的裁剪删掉
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_STREAM_KEY);
+            String lastDeliveredId = groups.stream()
+                    .filter(group -> SECKILL_STREAM_GROUP.equals(group.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+            //2.XPENDING stream.orders g1，已投递未确认的消息
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP);
+            String oldestPendingId = null;
+            long pendingCount = 0;
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                pendingCount = summary.getTotalPendingMessages();
+                oldestPendingId = summary.getIdRange().getLowerBound().getValue().orElse(null);
+            }
+            //3.第一条还没有投递的消息
+            String oldestUndeliveredId = null;
+            if (lastDeliveredId != null) {
+                List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(
+                        SECKILL_STREAM_KEY,
+                        Range.rightUnbounded(Range.Bound.exclusive(lastDeliveredId)),
+                        RedisZSetCommands.Limit.limit().count(1));
+                if (undelivered != null && !undelivered.isEmpty()) {
+                    oldestUndeliveredId = undelivered.get(0).getId().getValue();
+                }
+            }
+            //4.延迟为最老的未确认消息到现在的时间，消息id的前半部分就是写入时间
+            long now = System.currentTimeMillis();
+            long oldest = Math.min(
+                    oldestPendingId == null ? now : RecordId.of(oldestPendingId).getTimestamp(),
+                    oldestUndeliveredId == null ? now : RecordId.of(oldestUndeliveredId).getTimestamp());
+            //5.XLEN，已确认的消息会被裁剪，长度就是积压量
+            Long length = stringRedisTemplate.opsForStream().size(SECKILL_STREAM_KEY);
+            backlog = length == null ? 0 : length;
+            pending = pendingCount;
+            lagMillis = Math.max(0, now - oldest);
+            publish(now);
+            //6.裁剪已确认的消息，保留最老的pending消息和最后投递的消息中较小的一个之后的部分
+            String minId = minId(oldestPendingId, lastDeliveredId);
+            if (minId != null) {
+                trim(minId);
+            }
+        } catch (Exception e) {
+            log.error("统计订单stream积压异常", e);
+        }
+    }
+
+    /**
+     * 裁剪的下界：最老的pending消息和最后投递的消息中较小的一个
+     * 读取lastDeliveredId之前投递、读取XPENDING时已经不在pending中的消息都已确认，可以删除
+     * @param oldestPendingId 可以为null
+     * @param lastDeliveredId 可以为null
+     * @return 都为null时返回null
+     */
+    static String minId(String oldestPendingId, String lastDeliveredId) {
+        if (oldestPendingId == null || lastDeliveredId == null) {
+            return oldestPendingId != null ? oldestPendingId : lastDeliveredId;
+        }
+        RecordId pendingId = RecordId.of(oldestPendingId);
+        RecordId deliveredId = RecordId.of(lastDeliveredId);
+        int compare = Long.compare(pendingId.getTimestamp(), deliveredId.getTimestamp());
+        if (compare == 0) {
+            compare = Long.compare(pendingId.getSequence(), deliveredId.getSequence());
+        }
+        return compare <= 0 ? oldestPendingId : lastDeliveredId;
+    }
+
+    /**
+     * 把统计结果写到redis，方便其他节点和运维查看
+     */
+    private void publish(long now) {
+        Map<String, String> stats = new HashMap<>(4);
+        stats.put("backlog", String.valueOf(backlog));
+        stats.put("pending", String.valueOf(pending));
+        stats.put("lagMillis", String.valueOf(lagMillis));
+        stats.put("updatedAt", String.valueOf(now));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_STREAM_STATS_KEY, stats);
+    }
+
+    /**
+     * 裁剪minId之前的消息，优先使用XTRIM MINID
+     */
+    private void trim(String minId) {
+        if (minIdSupported) {
+            try {
+                trimMinId(minId);
+                return;
+            } catch (DataAccessException e) {
+                //只有redis返回命令错误时才认为不支持，连接异常等照常抛出
+                String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+                if (message == null || !message.startsWith("ERR")) {
+                    throw e;
+                }
+                minIdSupported = false;
+                log.warn("redis不支持XTRIM MINID（需要6.2及以上），改为XRANGE+XDEL删除已确认的消息：{}", message);
+            }
+        }
+        deleteBefore(minId);
+    }
+
+    /**
+     * XRANGE stream.orders - minId 查出minId之前的消息，XDEL删除，每次最多删除DELETE_MAX_BATCHES批
+     */
+    private void deleteBefore(String minId) {
+        for (int i = 0; i < DELETE_MAX_BATCHES; i++) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    SECKILL_STREAM_KEY,
+                    Range.leftUnbounded(Range.Bound.inclusive(minId)),
+                    RedisZSetCommands.Limit.limit().count(DELETE_BATCH_SIZE));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            List<RecordId> ids = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                //minId本身还没有确认，不能删除
+                if (!minId.equals(record.getId().getValue())) {
+                    ids.add(record.getId());
+                }
+            }
+            if (!ids.isEmpty()) {
+                stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, ids.toArray(new RecordId[0]));
+            }
+            if (records.size() < DELETE_BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * XTRIM stream.orders MINID ~ minId，需要redis 6.2及以上
+     */
+    private void trimMinId(String minId) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                SECKILL_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8),
+                minId.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 基于redis bitmap的布隆过滤器，多个节点共用一份位数组
+ * k个位置的SETBIT/GETBIT用pipeline一次发送
+ */
+public class RedisBloomFilter extends BloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        super(expectedInsertions, fpp);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public void put(long value) {
+        long[] positions = positions(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (long position : positions) {
+                stringConnection.setBit(key, position, true);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void putAll(Collection<Long> values) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Long value : values) {
+                for (long position : positions(value)) {
+                    stringConnection.setBit(key, position, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean mightContain(long value) {
+        long[] positions = positions(value);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (long position : positions) {
+                stringConnection.getBit(key, position);
+            }
+            return null;
+        });
+        for (Object result : results) {
+            if (!Boolean.TRUE.equals(result)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long bitCount() {
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection -> ((StringRedisConnection) connection).bitCount(key));
+        return count == null ? 0 : count;
+    }
+}
@@ -10,13 +10,39 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_SHOP_CHANNEL = "bloom:shop:add";
+    public static final String LOCK_BLOOM_SHOP_KEY = "lock:bloom:shop";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    public static final String SECKILL_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_STREAM_STATS_KEY = "stream.orders:stats";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DIRTY_KEY = "blog:liked:dirty";
+    public static final String BLOG_LIKED_PROCESSING_KEY = "blog:liked:processing";
+    public static final String BLOG_LIKED_BASE_KEY = "blog:liked:base";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_CREATED_KEY = "blog:hot:created";
+    public static final String BLOG_HOT_BASE_KEY = "blog:hot:base";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FOLLOWS_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,12 +1,20 @@
 package com.hmdp.utils;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 生成Redis唯一ID
@@ -19,10 +27,25 @@ public class RedisIdWorker {
     private final static long BEGIN_TIMESTAMP = 1725321600L;
     // 序列号位数
     private final static long COUNT_BITS = 32;
+    // 日期格式，线程安全，全局共用一个
+    private final static DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    // 号段模式每次从redis租用的序列号数量，小于等于1时每个ID都INCR一次
+    @Value("${hmdp.id.segment-step:1}")
+    private long segmentStep;
+
+    // 缓存当天的日期字符串，日期变化时才重新格式化
+    private volatile DateKey dateKey = new DateKey(Long.MIN_VALUE, null);
+
+    // 每个业务当前的号段
+    private final ConcurrentHashMap<String, Segment> segments = new ConcurrentHashMap<>();
+
+    // 异步预取下一个号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
     /**
      * 获取下一个ID
      * @param keyPrefix
@@ -30,14 +53,154 @@ public class RedisIdWorker {
      */
     public Long nextId(String keyPrefix) {// keyPrefix接收不同的key值，用以区分不同业务的id
         //1. 生成时间戳
-        long epochSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        LocalDateTime now = LocalDateTime.now();
+        long epochSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = epochSecond - BEGIN_TIMESTAMP;
         //2. 生成序列号,利用redis的自增长实现
         //2.1 获取当前日期
-        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        String date = dateOf(now.toLocalDate());
         //2.2 获取当前日期的key
-        Long count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);//通过每天更改key的日期来防止key的数值溢出问题
+        String key = "icr" + keyPrefix + ":" + date;//通过每天更改key的日期来防止key的数值溢出问题
+        long count = segmentStep > 1
+                ? nextFromSegment(keyPrefix, key)
+                : stringRedisTemplate.opsForValue().increment(key);
         //3. 拼接
         return timestamp << COUNT_BITS | count;// 左移32位，将时间戳左移32位，将序列号拼接到时间戳后面,符号位一直是0不用改
     }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdown();
+    }
+
+    /**
+     * 获取日期字符串，同一天内直接返回缓存
+     * @param today
+     * @return
+     */
+    private String dateOf(LocalDate today) {
+        DateKey cached = dateKey;
+        long epochDay = today.toEpochDay();
+        if (cached.epochDay == epochDay) {
+            return cached.date;
+        }
+        cached = new DateKey(epochDay, today.format(DATE_FORMATTER));
+        dateKey = cached;
+        return cached.date;
+    }
+
+    /**
+     * 从号段中取序列号，号段用完后切换到预取好的下一个号段
+     * @param keyPrefix
+     * @param key 当天的redis key，日期变化后号段重新开始
+     * @return
+     */
+    private long nextFromSegment(String keyPrefix, String key) {
+        Segment segment = segments.get(keyPrefix);
+        if (segment == null || !segment.key.equals(key)) {
+            //第一次使用或者跨天，换成新日期key的号段，只会向更新的日期切换
+            Segment fresh = new Segment(key);
+            segment = segments.merge(keyPrefix, fresh, (old, created) -> key.compareTo(old.key) > 0 ? created : old);
+            if (!segment.key.equals(key)) {
+                //跨天的瞬间拿到了前一天的日期，直接对前一天的key自增
+                return stringRedisTemplate.opsForValue().increment(key);
+            }
+        }
+        return segment.next();
+    }
+
+    /**
+     * 一个业务在某一天的号段
+     */
+    private class Segment {
+        private final String key;
+        private volatile Range current = new Range(1, 0);
+        private CompletableFuture<Range> prefetched;
+
+        Segment(String key) {
+            this.key = key;
+        }
+
+        long next() {
+            while (true) {
+                Range range = current;
+                //1.无锁取号
+                long value = range.cursor.getAndIncrement();
+                if (value <= range.end) {
+                    //1.1 号段用到预取点，异步租下一个号段
+                    if (value == range.prefetchAt) {
+                        prefetch();
+                    }
+                    return value;
+                }
+                //2.号段用完，只让一个线程切换
+                synchronized (this) {
+                    if (current == range) {
+                        current = takePrefetched();
+                    }
+                }
+            }
+        }
+
+        private synchronized void prefetch() {
+            if (prefetched == null) {
+                prefetched = CompletableFuture.supplyAsync(this::lease, prefetchExecutor);
+            }
+        }
+
+        private synchronized Range takePrefetched() {
+            CompletableFuture<Range> future = prefetched;
+            prefetched = null;
+            if (future == null) {
+                return lease();
+            }
+            try {
+                return future.join();
+            } catch (Exception e) {
+                //预取失败，同步重新租一次
+                return lease();
+            }
+        }
+
+        /**
+         * INCRBY step 租用一个号段 [end - step + 1, end]
+         * @return
+         */
+        private Range lease() {
+            Long end = stringRedisTemplate.opsForValue().increment(key, segmentStep);
+            if (end == null) {
+                throw new IllegalStateException("租用ID号段失败：" + key);
+            }
+            return new Range(end - segmentStep + 1, end);
+        }
+    }
+
+    /**
+     * 号段，cursor为下一个可用的序列号
+     */
+    private static class Range {
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        Range(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            // 用掉80%时预取下一个号段
+            this.prefetchAt = start + (end - start + 1) * 4 / 5;
+        }
+    }
+
+    /**
+     * 缓存的日期
+     */
+    private static class DateKey {
+        private final long epochDay;
+        private final String date;
+
+        DateKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
 }
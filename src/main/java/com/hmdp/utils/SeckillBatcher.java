@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀请求微批处理
+ * 把一个很短窗口内同一优惠券的并发秒杀请求合并成一次lua调用，每个请求再拿到自己的结果
+ */
+@Slf4j
+@Component
+public class SeckillBatcher {
+
+    @Value("${hmdp.seckill.batch.enabled:false}")
+    private boolean enabled;
+
+    //收集窗口，单位微秒
+    @Value("${hmdp.seckill.batch.window-micros:1500}")
+    private long windowMicros;
+
+    //一个批次最多合并的请求数
+    @Value("${hmdp.seckill.batch.max-size:200}")
+    private int maxSize;
+
+    //执行批量脚本的线程数
+    @Value("${hmdp.seckill.batch.executor-threads:4}")
+    private int executorThreads;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    private static final DefaultRedisScript<List<Long>> SECKILL_BATCH_SCRIPT;
+
+    static {
+        @SuppressWarnings("unchecked")
+        Class<List<Long>> resultType = (Class<List<Long>>) (Class<?>) List.class;
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(resultType);
+    }
+
+    private final BlockingQueue<Attempt> attempts = new LinkedBlockingQueue<>();
+
+    private ExecutorService collectorExecutor;
+
+    private ExecutorService scriptExecutor;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        collectorExecutor = Executors.newSingleThreadExecutor();
+        scriptExecutor = Executors.newFixedThreadPool(executorThreads);
+        collectorExecutor.submit(this::collect);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (collectorExecutor != null) {
+            collectorExecutor.shutdown();
+            scriptExecutor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 提交一次秒杀请求，所在批次执行完成后得到结果
+     * @return 0，下单成功，1，库存不足，2，重复下单，3，秒杀尚未开始，4，秒杀已经结束
+     */
+    public CompletableFuture<Long> submit(Long voucherId, Long userId, Long orderId, boolean leased) {
+        Attempt attempt = new Attempt(voucherId, userId, orderId, leased);
+        attempts.add(attempt);
+        return attempt.getResult();
+    }
+
+    /**
+     * 等待批次执行完成
+     * @param result submit返回的结果
+     * @return 脚本结果，等待超时返回null，此时脚本可能已经执行，结果未知
+     */
+    public Long await(CompletableFuture<Long> result) {
+        try {
+            return result.get(3, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("秒杀批处理异常", e);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 收集线程，在窗口时间内收集请求，按优惠券分组后交给脚本线程池
+     */
+    private void collect() {
+        while (running) {
+            try {
+                //1.阻塞等待窗口内的第一个请求
+                Attempt first = attempts.poll(2, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                //2.在窗口时间内继续收集，直到窗口结束或达到上限
+                List<Attempt> window = new ArrayList<>();
+                window.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (window.size() < maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Attempt next = attempts.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    window.add(next);
+                }
+                //3.按优惠券分组，每组一次lua调用
+                Map<Long, List<Attempt>> groups = window.stream().collect(Collectors.groupingBy(Attempt::getVoucherId));
+                groups.forEach((voucherId, group) -> scriptExecutor.submit(() -> execute(voucherId, group)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 执行批量脚本，把结果回填给每个等待的请求
+     */
+    private void execute(Long voucherId, List<Attempt> group) {
+        try {
+            //1.组装参数，秒杀券id和当前时间之后每个请求4个参数
+            List<String> args = new ArrayList<>(2 + group.size() * 4);
+            args.add(voucherId.toString());
+            args.add(String.valueOf(System.currentTimeMillis()));
+            for (Attempt attempt : group) {
+                args.add(attempt.getUserId().toString());
+                args.add(attempt.getOrderId().toString());
+                args.add(String.valueOf(seckillStockShards.shardOf(attempt.getUserId())));
+                args.add(attempt.isLeased() ? "1" : "0");
+            }
+            //2.执行脚本
+            List<Long> results = stringRedisTemplate.execute(
+                    SECKILL_BATCH_SCRIPT,
+                    seckillStockShards.scriptKeys(voucherId),
+                    args.toArray());
+            //3.回填结果
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).getResult().complete(results.get(i));
+            }
+        } catch (Exception e) {
+            log.error("秒杀批处理异常", e);
+            group.forEach(attempt -> attempt.getResult().completeExceptionally(e));
+        }
+    }
+
+    /**
+     * 等待批处理的秒杀请求
+     */
+    @Getter
+    private static class Attempt {
+        private final Long voucherId;
+        private final Long userId;
+        private final Long orderId;
+        private final boolean leased;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Attempt(Long voucherId, Long userId, Long orderId, boolean leased) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+            this.leased = leased;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记，售罄后的秒杀请求直接在JVM内拒绝，不再执行lua脚本
+ * 标记变化通过Redis频道广播给其他节点
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "soldout";
+    private static final String RESET = "reset";
+
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券在本地是否已经售罄
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄，并通知其他节点
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + ":" + voucherId);
+        }
+    }
+
+    /**
+     * 库存补充后清除售罄标记，并通知其他节点
+     * @param voucherId
+     */
+    public void reset(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + ":" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        try {
+            Long voucherId = Long.valueOf(body.substring(index + 1));
+            if (SOLD_OUT.equals(body.substring(0, index))) {
+                soldOutVouchers.add(voucherId);
+            } else {
+                soldOutVouchers.remove(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.error("无效的售罄消息：{}", body);
+        }
+    }
+}
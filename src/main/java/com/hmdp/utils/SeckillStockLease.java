@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点本地库存租约
+ * 每次从redis中租一批库存到本地，之后用本地原子计数扣减，大部分请求的库存判断不需要访问redis
+ * 一人一单仍然由redis中的订单集合保证，租约中未卖出的库存在秒杀结束或节点关闭时归还
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    //每次租用的库存数量
+    @Value("${hmdp.seckill.lease.block-size:50}")
+    private int blockSize;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    private final ConcurrentHashMap<Long, AtomicInteger> leases = new ConcurrentHashMap<>();
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 本地租约中是否还有库存
+     * @param voucherId
+     * @return
+     */
+    public boolean hasStock(Long voucherId) {
+        AtomicInteger lease = leases.get(voucherId);
+        return lease != null && lease.get() > 0;
+    }
+
+    /**
+     * 从本地租约中扣减一个库存，本地不足时向redis续租
+     * @param voucherId
+     * @return false表示redis中也没有库存了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        AtomicInteger lease = leases.computeIfAbsent(voucherId, id -> new AtomicInteger());
+        while (true) {
+            //1.本地CAS扣减
+            if (decrementIfPositive(lease)) {
+                return true;
+            }
+            //2.本地库存用完，同一优惠券只让一个线程去续租
+            synchronized (lease) {
+                if (lease.get() > 0) {
+                    continue;
+                }
+                Long leased = stringRedisTemplate.execute(
+                        LEASE_SCRIPT,
+                        seckillStockShards.stockKeys(voucherId),
+                        String.valueOf(blockSize),
+                        String.valueOf(ThreadLocalRandom.current().nextInt(seckillStockShards.getShardCount()))
+                );
+                if (leased == null || leased <= 0) {
+                    return false;
+                }
+                lease.addAndGet(leased.intValue());
+            }
+        }
+    }
+
+    /**
+     * 扣减的库存没有用掉（例如重复下单），还回本地租约
+     * @param voucherId
+     */
+    public void release(Long voucherId) {
+        AtomicInteger lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.incrementAndGet();
+        }
+    }
+
+    /**
+     * 把本地租约中剩余的库存归还到redis
+     * @param voucherId
+     * @return 归还的库存数量
+     */
+    public int returnLease(Long voucherId) {
+        AtomicInteger lease = leases.get(voucherId);
+        if (lease == null) {
+            return 0;
+        }
+        int left = lease.getAndSet(0);
+        if (left > 0) {
+            int shard = ThreadLocalRandom.current().nextInt(seckillStockShards.getShardCount());
+            stringRedisTemplate.opsForValue().increment(seckillStockShards.stockKey(voucherId, shard), left);
+            //redis中重新有了库存，清除各节点的售罄标记
+            seckillSoldOutRegistry.reset(voucherId);
+            log.info("归还优惠券{}的库存租约{}个", voucherId, left);
+        }
+        return left;
+    }
+
+    @PreDestroy
+    private void returnAll() {
+        for (Long voucherId : leases.keySet()) {
+            try {
+                returnLease(voucherId);
+            } catch (Exception e) {
+                log.error("归还库存租约异常", e);
+            }
+        }
+    }
+
+    private boolean decrementIfPositive(AtomicInteger lease) {
+        while (true) {
+            int current = lease.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (lease.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+}
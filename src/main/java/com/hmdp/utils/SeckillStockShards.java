@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀库存分片，一张优惠券的库存拆成多个子key，避免所有请求打在同一个key上
+ * 所有子key和订单集合共用 {voucherId} 哈希标签，保证在集群中落在同一个slot，lua脚本可以一起访问
+ */
+@Component
+public class SeckillStockShards {
+
+    @Value("${hmdp.seckill.stock-shards:4}")
+    private int shardCount;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 库存分片key：seckill:stock:{voucherId}:shard
+     * @param voucherId
+     * @param shard
+     * @return
+     */
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}:" + shard;
+    }
+
+    /**
+     * 已下单用户集合key：seckill:order:{voucherId}
+     * @param voucherId
+     * @return
+     */
+    public String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 秒杀时间信息key：seckill:voucher:{voucherId}，hash中保存begin和end毫秒值
+     * @param voucherId
+     * @return
+     */
+    public String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 所有库存分片key
+     * @param voucherId
+     * @return
+     */
+    public List<String> stockKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * lua脚本使用的KEYS：秒杀时间信息，订单集合，后面依次是各个库存分片
+     * @param voucherId
+     * @return
+     */
+    public List<String> scriptKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>(shardCount + 2);
+        keys.add(voucherKey(voucherId));
+        keys.add(orderKey(voucherId));
+        keys.addAll(stockKeys(voucherId));
+        return keys;
+    }
+
+    /**
+     * 根据用户id选择优先扣减的分片
+     * @param userId
+     * @return
+     */
+    public int shardOf(Long userId) {
+        return (int) (userId % shardCount);
+    }
+
+    /**
+     * 把总库存平均拆到各个分片，余数分给前面的分片
+     * 分片已经存在时不覆盖，避免重复预热把已经卖出的库存加回来
+     * @param voucherId
+     * @param stock
+     * @return 是否写入了库存
+     */
+    public boolean split(Long voucherId, int stock) {
+        Map<String, String> shards = new HashMap<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int shardStock = stock / shardCount + (i < stock % shardCount ? 1 : 0);
+            shards.put(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().multiSetIfAbsent(shards));
+    }
+}
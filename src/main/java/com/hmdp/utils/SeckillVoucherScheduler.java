@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀时间调度
+ * 定时扫描即将开始的秒杀券，在开始前预热redis中的时间信息和库存，结束后清理库存和订单集合
+ */
+@Slf4j
+@Component
+public class SeckillVoucherScheduler {
+
+    //扫描tb_seckill_voucher的间隔
+    @Value("${hmdp.seckill.schedule.scan-interval-seconds:60}")
+    private long scanIntervalSeconds;
+
+    //每次扫描未来多长时间内开始的秒杀
+    @Value("${hmdp.seckill.schedule.lookahead-minutes:10}")
+    private long lookaheadMinutes;
+
+    //提前多久预热
+    @Value("${hmdp.seckill.schedule.prewarm-lead-seconds:60}")
+    private long prewarmLeadSeconds;
+
+    //结束后多久清理库存和订单集合
+    @Value("${hmdp.seckill.schedule.expire-grace-seconds:300}")
+    private long expireGraceSeconds;
+
+    //时间信息在结束后保留多久，期间迟到的请求可以得到秒杀已结束的结果
+    @Value("${hmdp.seckill.schedule.voucher-retention-hours:24}")
+    private long voucherRetentionHours;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @Autowired
+    private SeckillStockLease seckillStockLease;
+
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    //已经安排了预热和清理任务的秒杀券，值为开始和结束时间，时间变化后重新安排
+    private final Map<Long, String> scheduled = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::scan, 0, scanIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 扫描即将开始或正在进行的秒杀
+     */
+    private void scan() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plusMinutes(lookaheadMinutes))
+                    .ge("end_time", now)
+                    .list();
+            vouchers.forEach(this::schedule);
+        } catch (Exception e) {
+            log.error("扫描秒杀券异常", e);
+        }
+    }
+
+    /**
+     * 安排一张秒杀券的预热和清理任务，秒杀已经开始时立即预热
+     * @param voucher
+     */
+    public void schedule(SeckillVoucher voucher) {
+        long begin = toMillis(voucher.getBeginTime());
+        long end = toMillis(voucher.getEndTime());
+        long now = System.currentTimeMillis();
+        //已经结束的秒杀不再预热
+        if (end < now) {
+            return;
+        }
+        String window = begin + ":" + end;
+        if (window.equals(scheduled.put(voucher.getVoucherId(), window))) {
+            return;
+        }
+        long prewarmDelay = Math.max(0, begin - TimeUnit.SECONDS.toMillis(prewarmLeadSeconds) - now);
+        long expireDelay = Math.max(0, end + TimeUnit.SECONDS.toMillis(expireGraceSeconds) - now);
+        scheduler.schedule(() -> prewarm(voucher, begin, end), prewarmDelay, TimeUnit.MILLISECONDS);
+        scheduler.schedule(() -> expire(voucher.getVoucherId(), window), expireDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 预热：写入时间信息和库存，清除本地售罄标记
+     */
+    private void prewarm(SeckillVoucher voucher, long begin, long end) {
+        try {
+            Long voucherId = voucher.getVoucherId();
+            //1.时间信息，lua脚本据此拒绝过早和过晚的请求
+            String voucherKey = seckillStockShards.voucherKey(voucherId);
+            Map<String, String> window = new HashMap<>(2);
+            window.put("begin", String.valueOf(begin));
+            window.put("end", String.valueOf(end));
+            stringRedisTemplate.opsForHash().putAll(voucherKey, window);
+            stringRedisTemplate.expire(voucherKey, end + TimeUnit.HOURS.toMillis(voucherRetentionHours) - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            //2.库存，已经存在时不覆盖
+            if (seckillStockShards.split(voucherId, voucher.getStock())) {
+                log.info("预热秒杀券{}，库存{}", voucherId, voucher.getStock());
+            }
+            //3.本地售罄状态
+            seckillSoldOutRegistry.reset(voucherId);
+        } catch (Exception e) {
+            log.error("预热秒杀券异常", e);
+        }
+    }
+
+    /**
+     * 清理：归还本地库存租约，删除库存分片和订单集合，时间信息保留到自身过期
+     */
+    private void expire(Long voucherId, String window) {
+        //秒杀时间已经被修改，由新的任务负责清理
+        if (!scheduled.remove(voucherId, window)) {
+            return;
+        }
+        try {
+            seckillStockLease.returnLease(voucherId);
+            List<String> keys = new ArrayList<>(seckillStockShards.stockKeys(voucherId));
+            keys.add(seckillStockShards.orderKey(voucherId));
+            stringRedisTemplate.delete(keys);
+            log.info("秒杀券{}已结束，清理redis库存", voucherId);
+        } catch (Exception e) {
+            log.error("清理秒杀券异常", e);
+        }
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
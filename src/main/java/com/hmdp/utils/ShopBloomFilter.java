@@ -0,0 +1,244 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺id布隆过滤器，在查缓存和数据库之前拦截不存在的id，防止缓存穿透
+ * 启动时流式读取tb_shop构建，新增店铺时追加；构建完成前放行所有请求
+ * 新增的店铺id通过Redis频道广播，每个节点都写入当前的过滤器和正在构建的过滤器；
+ * pub/sub不保证送达，local模式定期从数据库重建，丢失的广播最多造成一个重建周期的误拒
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements ApplicationRunner, MessageListener {
+
+    //local：JVM内位数组，redis：redis bitmap
+    @Value("${hmdp.bloom.shop.type:local}")
+    private String type;
+
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double fpp;
+
+    //local模式定期重建的间隔，0表示不重建；redis模式所有节点共用一个bitmap，不需要
+    @Value("${hmdp.bloom.shop.resync-minutes:30}")
+    private long resyncMinutes;
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private volatile BloomFilter filter;
+
+    //正在构建的过滤器，构建期间新增的店铺id同时写入这里，替换时不会丢失
+    private volatile BloomFilter building;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_SHOP_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!isRedis()) {
+            rebuild();
+            if (resyncMinutes > 0) {
+                scheduler.scheduleWithFixedDelay(this::resync, resyncMinutes, resyncMinutes, TimeUnit.MINUTES);
+            }
+            return;
+        }
+        //多个节点同时启动时只有一个构建，其他节点拿到锁后发现已经构建过，直接使用
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_SHOP_KEY);
+        lock.lock();
+        try {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOOM_SHOP_KEY))) {
+                filter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, expectedInsertions, fpp);
+                log.info("店铺布隆过滤器已存在，直接使用");
+                return;
+            }
+            doRebuild(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resync() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器定期重建失败", e);
+        }
+    }
+
+    /**
+     * 重新构建，先写到新的位数组，完成后再替换
+     * redis模式下多个节点共用同一个key，用分布式锁保证同一时间只有一个节点在构建
+     */
+    public void rebuild() {
+        if (!isRedis()) {
+            synchronized (this) {
+                doRebuild(false);
+            }
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_SHOP_KEY);
+        lock.lock();
+        try {
+            doRebuild(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doRebuild(boolean redis) {
+        long begin = System.currentTimeMillis();
+        if (redis) {
+            stringRedisTemplate.delete(BLOOM_SHOP_KEY + ":building");
+        }
+        BloomFilter building = redis
+                ? new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY + ":building", expectedInsertions, fpp)
+                : new LocalBloomFilter(expectedInsertions, fpp);
+        //先发布正在构建的过滤器，之后新增的店铺id即使不在扫描结果中也会写入
+        this.building = building;
+        //流式读取店铺id，每BATCH_SIZE个批量写入一次
+        AtomicLong count = new AtomicLong();
+        List<Long> batch = new ArrayList<>(BATCH_SIZE);
+        shopMapper.scanIds(context -> {
+            batch.add(context.getResultObject());
+            count.incrementAndGet();
+            if (batch.size() >= BATCH_SIZE) {
+                building.putAll(batch);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            building.putAll(batch);
+        }
+        if (redis) {
+            //构建完成后原子替换，查询始终使用正式key
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOOM_SHOP_KEY + ":building"))) {
+                stringRedisTemplate.rename(BLOOM_SHOP_KEY + ":building", BLOOM_SHOP_KEY);
+            } else {
+                stringRedisTemplate.delete(BLOOM_SHOP_KEY);
+            }
+            filter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, expectedInsertions, fpp);
+        } else {
+            filter = building;
+        }
+        //先替换再清空，put时先读building再读filter，两者之间的新增不会丢失
+        this.building = null;
+        log.info("店铺布隆过滤器构建完成，类型{}，店铺{}个，耗时{}ms", type, count.get(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 店铺id是否可能存在
+     * @param id
+     * @return
+     */
+    public boolean mightContain(Long id) {
+        BloomFilter current = filter;
+        return current == null || current.mightContain(id);
+    }
+
+    /**
+     * 新增店铺后追加，并通知其他节点
+     * @param id
+     */
+    public void add(Long id) {
+        put(id);
+        stringRedisTemplate.convertAndSend(BLOOM_SHOP_CHANNEL, id.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            put(Long.valueOf(body));
+        } catch (NumberFormatException e) {
+            log.error("无效的布隆过滤器消息：{}", body);
+        }
+    }
+
+    /**
+     * 写入正在构建的过滤器和当前的过滤器
+     * @param id
+     */
+    private void put(Long id) {
+        BloomFilter pending = building;
+        if (pending != null) {
+            pending.put(id);
+        }
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(id);
+        }
+    }
+
+    private boolean isRedis() {
+        return "redis".equalsIgnoreCase(type);
+    }
+
+    /**
+     * 布隆过滤器状态：位数、哈希次数、内存占用和估算误判率
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        BloomFilter current = filter;
+        stats.put("type", type);
+        stats.put("ready", current != null);
+        if (current != null) {
+            stats.put("bitSize", current.getBitSize());
+            stats.put("hashCount", current.getHashCount());
+            stats.put("memoryBytes", current.memoryBytes());
+            stats.put("expectedFpp", current.expectedFpp());
+        }
+        return stats;
+    }
+}
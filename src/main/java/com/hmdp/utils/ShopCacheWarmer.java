@@ -0,0 +1,205 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 店铺缓存预热
+ * 流式读取tb_shop，按批用pipeline写入逻辑过期的缓存，按配置的速率限流，避免redis故障恢复后流量全部打到数据库
+ * 可以在启动时执行，也可以通过运维接口触发
+ * 扫描结果是旧快照，为了不覆盖预热期间更新过的店铺：只用SET NX写入不存在的key；
+ * 预热期间收到失效消息的key不写入，写入后才收到失效消息的key删掉，预热结束后再统一删一次
+ * 失效消息在预热结束后才到达的极端情况下，旧数据最多保留到逻辑过期
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner, MessageListener {
+
+    //是否在启动时预热
+    @Value("${hmdp.cache.warmup.on-startup:false}")
+    private boolean onStartup;
+
+    //每批写入的店铺数量
+    @Value("${hmdp.cache.warmup.batch-size:500}")
+    private int batchSize;
+
+    //每秒最多写入的店铺数量
+    @Value("${hmdp.cache.warmup.rate-per-second:5000}")
+    private long ratePerSecond;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //预热期间被更新（收到失效消息）的key
+    private final Set<String> touched = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong written = new AtomicLong();
+    private volatile long total;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String lastError;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (!running.get()) {
+            return;
+        }
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (key.startsWith(CACHE_SHOP_KEY)) {
+            touched.add(key);
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (onStartup) {
+            start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 异步开始预热
+     * @return 已经有预热在执行时返回false
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        written.set(0);
+        touched.clear();
+        total = 0;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        lastError = null;
+        executor.execute(() -> {
+            try {
+                warmUp();
+                log.info("店铺缓存预热完成，写入{}个，耗时{}ms", written.get(), System.currentTimeMillis() - startedAt);
+            } catch (Exception e) {
+                lastError = e.getMessage();
+                log.error("店铺缓存预热失败，已写入{}个", written.get(), e);
+            } finally {
+                finishedAt = System.currentTimeMillis();
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 预热进度
+     * @return 是否执行中、总数、已写入数量、耗时和错误信息
+     */
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new HashMap<>();
+        long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+        progress.put("running", running.get());
+        progress.put("total", total);
+        progress.put("written", written.get());
+        progress.put("elapsedMillis", startedAt > 0 ? end - startedAt : 0);
+        progress.put("lastError", lastError);
+        return progress;
+    }
+
+    private void warmUp() {
+        total = shopMapper.selectCount(null);
+        long expireSeconds = TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL);
+        Map<String, Shop> batch = new LinkedHashMap<>(batchSize * 2);
+        long[] lastLogAt = {0};
+        //流式读取店铺，每batchSize个写入一次
+        shopMapper.scanAll(context -> {
+            Shop shop = context.getResultObject();
+            batch.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            if (batch.size() >= batchSize) {
+                flush(batch, expireSeconds);
+                if (written.get() - lastLogAt[0] >= batchSize * 20L) {
+                    lastLogAt[0] = written.get();
+                    log.info("店铺缓存预热中，{}/{}", written.get(), total);
+                }
+            }
+        });
+        if (!batch.isEmpty()) {
+            flush(batch, expireSeconds);
+        }
+        //预热期间被更新过的key统一再删一次，下次查询时从数据库重新加载
+        touched.forEach(cacheClient::delete);
+    }
+
+    /**
+     * 写入一批，写完后按速率限流
+     */
+    private void flush(Map<String, Shop> batch, long expireSeconds) {
+        long size = batch.size();
+        //已经收到失效消息的key不写入
+        batch.keySet().removeAll(touched);
+        cacheClient.setBatchWithLogicalExpire(batch, expireSeconds, TimeUnit.SECONDS, true);
+        //写入过程中收到失效消息的key删掉
+        for (String key : batch.keySet()) {
+            if (touched.contains(key)) {
+                cacheClient.delete(key);
+            }
+        }
+        long count = written.addAndGet(size);
+        batch.clear();
+        if (ratePerSecond <= 0) {
+            return;
+        }
+        long expectedMillis = count * 1000 / ratePerSecond;
+        long sleepMillis = expectedMillis - (System.currentTimeMillis() - startedAt);
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("店铺缓存预热被中断", e);
+            }
+        }
+    }
+}
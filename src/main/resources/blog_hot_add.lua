@@ -0,0 +1,14 @@
+--写入或更新博客的热度分，KEYS[1]为热门排行zset，KEYS[2]为博客发布时间hash，KEYS[3]为热度分的基准时间
+--参数列表：博客id，发布时间（秒），点赞数，衰减周期（秒）
+--热度分 = log10(max(点赞数,1)) + (发布时间 - 基准时间) / 衰减周期，早发布一个衰减周期的博客需要多10倍的点赞才能和后发布的博客持平
+local blogId = ARGV[1]
+local created = tonumber(ARGV[2])
+local likes = tonumber(ARGV[3])
+local decay = tonumber(ARGV[4])
+redis.call("hset", KEYS[2], blogId, created)
+--还没有基准时间时以这篇博客的发布时间为基准
+redis.call("setnx", KEYS[3], created)
+local base = tonumber(redis.call("get", KEYS[3]))
+local score = math.log10(math.max(likes, 1)) + (created - base) / decay
+redis.call("zadd", KEYS[1], score, blogId)
+return 1
@@ -0,0 +1,24 @@
+--把热度分的基准时间移动到新的时间，所有博客的热度分减去相同的值，排序不变，避免分数随时间无限增大丢失精度
+--KEYS[1]为热门排行zset，KEYS[2]为基准时间，KEYS[3]为博客发布时间hash
+--参数列表：新的基准时间（秒），衰减周期（秒），排行最多保留的博客数量
+local newBase = tonumber(ARGV[1])
+local decay = tonumber(ARGV[2])
+local maxSize = tonumber(ARGV[3])
+local old = redis.call("get", KEYS[2])
+redis.call("set", KEYS[2], newBase)
+if old then
+    local delta = (newBase - tonumber(old)) / decay
+    if delta ~= 0 then
+        local members = redis.call("zrange", KEYS[1], 0, -1)
+        for _, member in ipairs(members) do
+            redis.call("zincrby", KEYS[1], -delta, member)
+        end
+    end
+end
+--只保留热度最高的maxSize篇，移出排行的博客同时删除发布时间，每次最多删除1000个，避免unpack参数过多
+local dropped = redis.call("zrange", KEYS[1], 0, -maxSize - 1)
+for i = 1, #dropped, 1000 do
+    redis.call("hdel", KEYS[3], unpack(dropped, i, math.min(i + 999, #dropped)))
+end
+redis.call("zremrangebyrank", KEYS[1], 0, -maxSize - 1)
+return redis.call("zcard", KEYS[1])
@@ -0,0 +1,32 @@
+--点赞或取消点赞，KEYS[1]为博客的点赞zset，KEYS[2]为待回写数据库的博客id集合，KEYS[3]为点赞数基数hash
+--KEYS[4]为热门排行zset，KEYS[5]为博客发布时间hash，KEYS[6]为热度分的基准时间
+--参数列表：用户id，点赞时间，博客id，数据库中的点赞数（基数已知时为-1），热度衰减周期（秒）
+--点赞数 = 基数 + 点赞zset的元素个数，基数是数据库中已有、但不在点赞zset中的点赞（初始化数据、redis数据丢失）
+local userId = ARGV[1]
+local now = ARGV[2]
+local blogId = ARGV[3]
+--第一次处理该博客时记录基数，之后不再变化
+if tonumber(ARGV[4]) >= 0 and redis.call("hexists", KEYS[3], blogId) == 0 then
+    redis.call("hset", KEYS[3], blogId, math.max(tonumber(ARGV[4]) - redis.call("zcard", KEYS[1]), 0))
+end
+--已点赞则取消，否则点赞
+local liked
+if redis.call("zscore", KEYS[1], userId) then
+    redis.call("zrem", KEYS[1], userId)
+    liked = 0
+else
+    redis.call("zadd", KEYS[1], now, userId)
+    liked = 1
+end
+--标记该博客的点赞数需要回写数据库
+redis.call("sadd", KEYS[2], blogId)
+--按新的点赞数（基数 + zset元素个数）更新热度分，和blog_hot_add.lua的公式相同，排行中没有发布时间的博客不处理
+local created = redis.call("hget", KEYS[5], blogId)
+local base = redis.call("get", KEYS[6])
+if created and base then
+    local likes = tonumber(redis.call("hget", KEYS[3], blogId) or "0") + redis.call("zcard", KEYS[1])
+    local score = math.log10(math.max(likes, 1)) + (tonumber(created) - tonumber(base)) / tonumber(ARGV[5])
+    redis.call("zadd", KEYS[4], score, blogId)
+end
+--返回1表示本次为点赞，0表示本次为取消点赞
+return liked
@@ -3,27 +3,52 @@
 --- Created by wwsz.
 --- DateTime: 2024/9/6 上午11:32
 ---
---参数列表,用户id，秒杀券id,订单id
+--参数列表,用户id，秒杀券id,订单id,优先扣减的库存分片,库存是否已经从本地租约中扣减,当前时间毫秒值
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
---定义库存key
-local stockKey = "seckill:stock:" .. voucherId
---定义订单key
-local orderKey = "seckill:order:" .. voucherId
---读取库存
-local stock =redis.call("get", stockKey)
---判断库存
-if(tonumber(stock) <= 0) then
-    return 1
+local shard = tonumber(ARGV[4])
+local leased = ARGV[5] == "1"
+local now = tonumber(ARGV[6])
+--KEYS[1]为秒杀时间信息key，KEYS[2]为订单key，KEYS[3..n]为库存分片key，共用同一个哈希标签
+local voucherKey = KEYS[1]
+local orderKey = KEYS[2]
+local shardCount = #KEYS - 2
+--判断秒杀时间，时间信息由调度器在秒杀开始前预热，不存在说明还没有预热
+local time = redis.call("hmget", voucherKey, "begin", "end")
+local beginTime = tonumber(time[1])
+local endTime = tonumber(time[2])
+if beginTime == nil or now < beginTime then
+    return 3
 end
---判断用户是否下单过
+if endTime ~= nil and now > endTime then
+    return 4
+end
+--从用户所在分片开始读取库存，自己的分片为空时依次尝试兄弟分片，已经扣过租约的请求不再判断库存
+local stockKey = nil
+if not leased then
+    for i = 0, shardCount - 1 do
+        local key = KEYS[3 + (shard + i) % shardCount]
+        local stock = tonumber(redis.call("get", key))
+        if stock ~= nil and stock > 0 then
+            stockKey = key
+            break
+        end
+    end
+    --判断库存，所有分片都为空说明库存不足
+    if stockKey == nil then
+        return 1
+    end
+end
+--判断用户是否下单过，订单集合不分片，一人一单不受分片影响
 local orderif = redis.call("sismember", orderKey, userId)
 if orderif == 1 then --存在说明是重复下单，不允许
     return 2
 end
 --扣减库存incrby stockKey -1
-redis.call("incrby", stockKey, -1)
+if stockKey ~= nil then
+    redis.call("incrby", stockKey, -1)
+end
 --正式下单，创建库存信息
 redis.call("sadd", orderKey, userId)
 --发送消息进入消息队列 xadd stream.orders(队列名) *（redis自行生成id） key1 value1 key2 value2...
@@ -0,0 +1,60 @@
+--一次执行一批秒杀请求，逐个判断库存和一人一单，返回每个请求的结果
+--参数列表,秒杀券id,当前时间毫秒值,之后每4个参数为一个请求：用户id,订单id,优先扣减的库存分片,库存是否已经从本地租约中扣减
+local voucherId = ARGV[1]
+local now = tonumber(ARGV[2])
+--KEYS[1]为秒杀时间信息key，KEYS[2]为订单key，KEYS[3..n]为库存分片key，共用同一个哈希标签
+local voucherKey = KEYS[1]
+local orderKey = KEYS[2]
+local shardCount = #KEYS - 2
+local count = (#ARGV - 2) / 4
+
+--判断秒杀时间，整批请求共用同一个结果
+local results = {}
+local time = redis.call("hmget", voucherKey, "begin", "end")
+local beginTime = tonumber(time[1])
+local endTime = tonumber(time[2])
+local timeResult = 0
+if beginTime == nil or now < beginTime then
+    timeResult = 3
+elseif endTime ~= nil and now > endTime then
+    timeResult = 4
+end
+if timeResult ~= 0 then
+    for j = 1, count do
+        results[j] = timeResult
+    end
+    return results
+end
+
+--单个请求的判断逻辑与seckill.lua一致，0，下单成功，1，库存不足，2，重复下单
+local function seckill(userId, orderId, shard, leased)
+    local stockKey = nil
+    if not leased then
+        for i = 0, shardCount - 1 do
+            local key = KEYS[3 + (shard + i) % shardCount]
+            local stock = tonumber(redis.call("get", key))
+            if stock ~= nil and stock > 0 then
+                stockKey = key
+                break
+            end
+        end
+        if stockKey == nil then
+            return 1
+        end
+    end
+    if redis.call("sismember", orderKey, userId) == 1 then
+        return 2
+    end
+    if stockKey ~= nil then
+        redis.call("incrby", stockKey, -1)
+    end
+    redis.call("sadd", orderKey, userId)
+    redis.call("xadd", "stream.orders", "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+    return 0
+end
+
+for j = 0, count - 1 do
+    local base = 3 + j * 4
+    results[j + 1] = seckill(ARGV[base], ARGV[base + 1], tonumber(ARGV[base + 2]), ARGV[base + 3] == "1")
+end
+return results
\ No newline at end of file
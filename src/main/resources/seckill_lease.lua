@@ -0,0 +1,21 @@
+--参数列表,本次租约的库存数量,优先扣减的库存分片
+local want = tonumber(ARGV[1])
+local shard = tonumber(ARGV[2])
+--KEYS为各个库存分片key
+local shardCount = #KEYS
+local got = 0
+--从指定分片开始依次扣减，直到凑够租约数量或所有分片为空
+for i = 0, shardCount - 1 do
+    if got >= want then
+        break
+    end
+    local key = KEYS[1 + (shard + i) % shardCount]
+    local stock = tonumber(redis.call("get", key))
+    if stock ~= nil and stock > 0 then
+        local take = math.min(stock, want - got)
+        redis.call("incrby", key, -take)
+        got = got + take
+    end
+end
+--返回实际租到的库存数量，0表示库存不足
+return got
\ No newline at end of file
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 关注feed的k路归并和滚动分页
+ * 用户1的收件箱和关注的大V 9的发件箱，博客3同时出现在两个来源中
+ */
+@ExtendWith(MockitoExtension.class)
+class FeedTimelineTests {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private SetOperations<String, String> setOperations;
+
+    @InjectMocks
+    private FeedTimeline feedTimeline;
+
+    //每个来源按redis返回的顺序保存：分数倒序，分数相同时成员倒序
+    private final Map<String, List<ZSetOperations.TypedTuple<String>>> sources = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        sources.put(FEED_KEY + 1, Arrays.asList(
+                new DefaultTypedTuple<>("5", 500.0),
+                new DefaultTypedTuple<>("3", 300.0),
+                new DefaultTypedTuple<>("2", 300.0),
+                new DefaultTypedTuple<>("1", 100.0)));
+        sources.put(FEED_OUTBOX_KEY + 9, Arrays.asList(
+                new DefaultTypedTuple<>("4", 400.0),
+                new DefaultTypedTuple<>("3", 300.0),
+                new DefaultTypedTuple<>("6", 200.0)));
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.intersect(FOLLOWS_KEY + 1, FEED_BIG_AUTHORS_KEY)).thenReturn(Collections.singleton("9"));
+        //执行pipeline回调，按回调传入的key、max、count从上面的来源中截取
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            RedisCallback<?> callback = invocation.getArgument(0);
+            List<Object> results = new ArrayList<>();
+            RedisConnection connection = mock(RedisConnection.class);
+            when(connection.zRevRangeByScoreWithScores(any(byte[].class), anyDouble(), anyDouble(), anyLong(), anyLong()))
+                    .thenAnswer(call -> {
+                        String key = new String((byte[]) call.getArgument(0), StandardCharsets.UTF_8);
+                        double max = call.getArgument(2);
+                        long count = call.getArgument(4);
+                        results.add(sources.get(key).stream()
+                                .filter(tuple -> tuple.getScore() <= max)
+                                .limit(count)
+                                .collect(Collectors.toCollection(LinkedHashSet::new)));
+                        return null;
+                    });
+            callback.doInRedis(connection);
+            return results;
+        });
+    }
+
+    @Test
+    void testMergeInTimeOrder() {
+        List<ZSetOperations.TypedTuple<String>> page = feedTimeline.read(1L, Long.MAX_VALUE, 0, 10);
+        //两个来源按时间倒序归并，重复的博客3只出现一次
+        assertEquals(Arrays.asList("5", "4", "3", "2", "6", "1"), ids(page));
+        assertEquals(500.0, page.get(0).getScore());
+    }
+
+    @Test
+    void testScrollWithOffset() {
+        List<ZSetOperations.TypedTuple<String>> first = feedTimeline.read(1L, Long.MAX_VALUE, 0, 3);
+        assertEquals(Arrays.asList("5", "4", "3"), ids(first));
+        //下一页从上一页最小的时间戳开始，跳过上一页中时间戳相同的条数
+        long max = first.get(first.size() - 1).getScore().longValue();
+        int offset = (int) first.stream().filter(tuple -> tuple.getScore() == max).count();
+        List<ZSetOperations.TypedTuple<String>> second = feedTimeline.read(1L, max, offset, 3);
+        //跨来源的重复博客不占用offset，翻页不重复也不遗漏
+        assertEquals(Arrays.asList("2", "6", "1"), ids(second));
+        List<ZSetOperations.TypedTuple<String>> third = feedTimeline.read(1L, 100, 1, 3);
+        assertEquals(Collections.emptyList(), ids(third));
+    }
+
+    private static List<String> ids(List<ZSetOperations.TypedTuple<String>> page) {
+        return page.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+}
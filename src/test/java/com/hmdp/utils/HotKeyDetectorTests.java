@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点key探测：count-min sketch只会高估不会低估，滑动窗口过后热点失效
+ * 采样率设为1，窗口足够长，保证结果不受随机采样和定时滑动影响
+ */
+class HotKeyDetectorTests {
+
+    private HotKeyDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(detector, "windowSeconds", 3600);
+        ReflectionTestUtils.setField(detector, "slotCount", 5);
+        ReflectionTestUtils.setField(detector, "threshold", 100L);
+        ReflectionTestUtils.setField(detector, "topK", 10);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(detector, "destroy");
+    }
+
+    @Test
+    void testHotAtThreshold() {
+        for (int i = 1; i < 100; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        //第100次访问达到阈值
+        assertTrue(detector.record("cache:shop:1"));
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+    }
+
+    @Test
+    void testNeverUnderestimate() {
+        for (int i = 0; i < 1000; i++) {
+            detector.record("cache:shop:" + i);
+        }
+        for (int i = 0; i < 150; i++) {
+            detector.record("cache:shop:hot");
+        }
+        List<Map<String, Object>> top = detector.topKeys(1);
+        assertEquals("cache:shop:hot", top.get(0).get("key"));
+        //其他key的碰撞只会让估算值偏大
+        assertTrue((Long) top.get(0).get("count") >= 150);
+        assertEquals(true, top.get(0).get("hot"));
+        //只访问过一次的长尾key不会被判为热点
+        assertFalse(detector.isHot("cache:shop:1"));
+    }
+
+    @Test
+    void testExpireAfterWindow() {
+        for (int i = 0; i < 100; i++) {
+            detector.record("cache:shop:1");
+        }
+        assertTrue(detector.isHot("cache:shop:1"));
+        //窗口滑过所有格子后访问记录全部淘汰
+        for (int i = 0; i < 5; i++) {
+            ReflectionTestUtils.invokeMethod(detector, "rotate");
+        }
+        assertFalse(detector.isHot("cache:shop:1"));
+        assertTrue(detector.topKeys(10).isEmpty());
+    }
+
+    @Test
+    void testDisabled() {
+        ReflectionTestUtils.setField(detector, "enabled", false);
+        for (int i = 0; i < 200; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        assertFalse(detector.isHot("cache:shop:1"));
+    }
+}
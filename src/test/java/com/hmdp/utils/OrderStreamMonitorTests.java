@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 订单stream裁剪的下界，XTRIM MINID会删除比它小的所有消息，
+ * 取大了会删掉还没确认的消息，必须是最老的pending消息和最后投递的消息中较小的一个
+ */
+class OrderStreamMonitorTests {
+
+    @Test
+    void testPendingBeforeDelivered() {
+        assertEquals("1700000000000-0", OrderStreamMonitor.minId("1700000000000-0", "1700000005000-3"));
+    }
+
+    @Test
+    void testDeliveredBeforePending() {
+        //读取XINFO之后又投递的消息出现在XPENDING中，比lastDeliveredId新，不能以它为界
+        assertEquals("1700000005000-3", OrderStreamMonitor.minId("1700000009000-0", "1700000005000-3"));
+    }
+
+    @Test
+    void testSameMillisecondComparesSequence() {
+        assertEquals("1700000005000-2", OrderStreamMonitor.minId("1700000005000-2", "1700000005000-10"));
+        //序号按数字比较，不按字符串比较
+        assertEquals("1700000005000-9", OrderStreamMonitor.minId("1700000005000-10", "1700000005000-9"));
+        assertEquals("1700000005000-3", OrderStreamMonitor.minId("1700000005000-3", "1700000005000-3"));
+    }
+
+    @Test
+    void testTimestampComparedAsNumber() {
+        assertEquals("999999999999-5", OrderStreamMonitor.minId("1000000000000-0", "999999999999-5"));
+    }
+
+    @Test
+    void testMissingIds() {
+        //没有pending消息时以最后投递的消息为界
+        assertEquals("1700000005000-3", OrderStreamMonitor.minId(null, "1700000005000-3"));
+        assertEquals("1700000000000-0", OrderStreamMonitor.minId("1700000000000-0", null));
+        assertNull(OrderStreamMonitor.minId(null, null));
+    }
+}
@@ -0,0 +1,136 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * seckill.lua的返回值：0成功，1库存不足，2重复下单，3未开始（或未预热），4已结束
+ * 只启动redis相关的bean，不启动订单消费者，测试写入stream的消息在结束时删除
+ */
+@SpringBootTest(classes = {RedisAutoConfiguration.class, SeckillStockShards.class})
+class SeckillScriptTests {
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    //不会和真实优惠券冲突的id
+    private static final Long VOUCHER_ID = 9_000_000_001L;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+
+    @BeforeEach
+    void setUp() {
+        cleanUp();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cleanUp();
+    }
+
+    @Test
+    void testNotPrewarmed() {
+        assertEquals(3L, seckill(1L, false));
+    }
+
+    @Test
+    void testNotStarted() {
+        prewarm(System.currentTimeMillis() + 60_000, System.currentTimeMillis() + 120_000, 10);
+        assertEquals(3L, seckill(1L, false));
+    }
+
+    @Test
+    void testEnded() {
+        prewarm(System.currentTimeMillis() - 120_000, System.currentTimeMillis() - 60_000, 10);
+        assertEquals(4L, seckill(1L, false));
+    }
+
+    @Test
+    void testStockAndDuplicate() {
+        prewarm(System.currentTimeMillis() - 60_000, System.currentTimeMillis() + 60_000, 2);
+        assertEquals(0L, seckill(1L, false));
+        //还有库存时重复下单
+        assertEquals(2L, seckill(1L, false));
+        //用户2的分片没有库存，依次从兄弟分片扣减
+        assertEquals(0L, seckill(2L, false));
+        assertEquals(1L, seckill(3L, false));
+        assertEquals(2, stringRedisTemplate.opsForSet().size(seckillStockShards.orderKey(VOUCHER_ID)));
+        assertEquals(2, orderRecords().size());
+    }
+
+    @Test
+    void testLeasedSkipsStock() {
+        prewarm(System.currentTimeMillis() - 60_000, System.currentTimeMillis() + 60_000, 0);
+        //已经从本地租约扣过库存，不再判断redis库存，但仍然判断一人一单
+        assertEquals(0L, seckill(1L, true));
+        assertEquals(2L, seckill(1L, true));
+        assertEquals(1L, seckill(2L, false));
+    }
+
+    private Long seckill(Long userId, boolean leased) {
+        return stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                seckillStockShards.scriptKeys(VOUCHER_ID),
+                VOUCHER_ID.toString(),
+                userId.toString(),
+                String.valueOf(VOUCHER_ID * 10 + userId),
+                String.valueOf(seckillStockShards.shardOf(userId)),
+                leased ? "1" : "0",
+                String.valueOf(System.currentTimeMillis()));
+    }
+
+    private void prewarm(long begin, long end, int stock) {
+        Map<String, String> time = new HashMap<>();
+        time.put("begin", String.valueOf(begin));
+        time.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(seckillStockShards.voucherKey(VOUCHER_ID), time);
+        seckillStockShards.split(VOUCHER_ID, stock);
+    }
+
+    private List<MapRecord<String, Object, Object>> orderRecords() {
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+        List<MapRecord<String, Object, Object>> all = stringRedisTemplate.opsForStream().range(SECKILL_STREAM_KEY, Range.unbounded());
+        if (all != null) {
+            for (MapRecord<String, Object, Object> record : all) {
+                if (VOUCHER_ID.toString().equals(record.getValue().get("voucherId"))) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    private void cleanUp() {
+        List<String> keys = seckillStockShards.scriptKeys(VOUCHER_ID);
+        stringRedisTemplate.delete(keys);
+        for (MapRecord<String, Object, Object> record : orderRecords()) {
+            stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, record.getId());
+        }
+    }
+}